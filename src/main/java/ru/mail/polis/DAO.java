@@ -17,12 +17,12 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -31,57 +31,34 @@ import java.util.NoSuchElementException;
  * @author Vadim Tsesko
  * @author Dmitry Schitinin
  */
-public interface DAO extends Closeable {
+public interface DAO extends ReadView {
 
     /**
-     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
-     * in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
-     * N.B. The iterator should be obtained as fast as possible, e.g.
-     * one should not "seek" to start point ("from" element) in linear time ;)
-     */
-    @NotNull
-    Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
-
-    /**
-     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
-     * until given "to" key (exclusive) in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
-     * N.B. The iterator should be obtained as fast as possible, e.g.
-     * one should not "seek" to start point ("from" element) in linear time ;)
+     * Obtains values of given keys.
+     *
+     * @return values in the order of keys, null for keys with no record
      */
     @NotNull
-    default Iterator<Record> range(
-            @NotNull ByteBuffer from,
-            @Nullable ByteBuffer to) throws IOException {
-        if (to == null) {
-            return iterator(from);
-        }
-
-        if (from.compareTo(to) > 0) {
-            return Iters.empty();
+    default List<ByteBuffer> getAll(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final List<ByteBuffer> values = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            try {
+                values.add(get(key));
+            } catch (NoSuchElementException e) {
+                values.add(null);
+            }
         }
-
-        final Record bound = new Record(to, ByteBuffer.allocate(0));
-        return Iters.until(iterator(from), bound);
+        return values;
     }
 
     /**
-     * Obtains {@link Record} corresponding to given key.
+     * Takes read view of the current state, which is not changed by later writes, flushes and compactions.
      *
-     * @throws NoSuchElementException if no such record
+     * @throws UnsupportedOperationException if the storage can not provide views
      */
     @NotNull
-    default ByteBuffer get(@NotNull ByteBuffer key) throws IOException, NoSuchElementException {
-        final Iterator<Record> iter = iterator(key);
-        if (!iter.hasNext()) {
-            throw new NoSuchElementException("Not found");
-        }
-
-        final Record next = iter.next();
-        if (next.getKey().equals(key)) {
-            return next.getValue();
-        } else {
-            throw new NoSuchElementException("Not found");
-        }
+    default Snapshot snapshot() throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported");
     }
 
     /**
@@ -96,6 +73,21 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Writes every operation of the batch in order.
+     * Implementations may apply the batch atomically, this one applies operations one by one.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            final ByteBuffer value = batch.getValue(i);
+            if (value == null) {
+                remove(batch.getKey(i));
+            } else {
+                upsert(batch.getKey(i), value);
+            }
+        }
+    }
+
     /**
      * Perform compaction
      */
@@ -17,6 +17,8 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.eretic431.CompactionStyle;
+import ru.mail.polis.eretic431.Config;
 import ru.mail.polis.eretic431.LsmDAO;
 
 import java.io.File;
@@ -42,6 +44,20 @@ public final class DAOFactory {
      */
     @NotNull
     static DAO create(@NotNull final File data) throws IOException {
+        return create(data, Config.DEFAULT_COMPACTION_STYLE);
+    }
+
+    /**
+     * Construct a {@link DAO} instance.
+     *
+     * @param data            local disk folder to persist the data to
+     * @param compactionStyle how the data on disk is compacted
+     * @return a storage instance
+     */
+    @NotNull
+    static DAO create(
+            @NotNull final File data,
+            @NotNull final CompactionStyle compactionStyle) throws IOException {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -54,6 +70,13 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new LsmDAO(data, MAX_HEAP / 128);
+        return new LsmDAO(
+                data,
+                Config.builder()
+                        .flushThreshold(MAX_HEAP / 32)
+                        .blockCacheSize(MAX_HEAP / 16)
+                        .memoryBudget(MAX_HEAP / 2)
+                        .compactionStyle(compactionStyle)
+                        .build());
     }
 }
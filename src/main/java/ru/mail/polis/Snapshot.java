@@ -0,0 +1,8 @@
+package ru.mail.polis;
+
+/**
+ * Read view of {@link DAO} as of the moment it was taken, writes made later are not seen through it.
+ * A view keeps data it needs alive, so it has to be closed once it is not needed.
+ */
+public interface Snapshot extends ReadView {
+}
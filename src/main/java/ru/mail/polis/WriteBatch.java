@@ -0,0 +1,71 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upserts and removals to be written by {@link DAO#write(WriteBatch)} together, in the order they are added.
+ * Buffers are kept as they are, so they must not be changed until the batch is written.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // Null values stand for removals
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Adds upsert of the key.
+     *
+     * @param key   is a key to upsert
+     * @param value is a new value of {@param key}
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        keys.add(key);
+        values.add(value);
+        return this;
+    }
+
+    /**
+     * Adds removal of the key.
+     *
+     * @param key is a key to remove
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        keys.add(key);
+        values.add(null);
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    @NotNull
+    public ByteBuffer getKey(final int index) {
+        return keys.get(index);
+    }
+
+    /**
+     * Returns value of the operation.
+     *
+     * @param index of the operation
+     * @return new value, null if the operation is a removal
+     */
+    @Nullable
+    public ByteBuffer getValue(final int index) {
+        return values.get(index);
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bump allocator of direct memory slabs, which are never freed one by one.
+ * A slab is released once the arena and every buffer sliced from the slab are unreachable.
+ * An address is the index of a slab (high 32 bits) and an offset in the slab (low 32 bits), aligned to 8 bytes.
+ */
+final class Arena {
+    private static final int MIN_SLAB_BYTES = 64 * 1024;
+    private static final int MAX_SLAB_BYTES = 4 * 1024 * 1024;
+    private static final int ALIGNMENT = Long.BYTES;
+
+    private final Lock lock = new ReentrantLock();
+    // Replaced on growth, so readers resolve published addresses without locking
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int current = -1;
+    private int used;
+    private long size;
+    // Copy of the size published under the lock, read without it
+    private volatile long published;
+
+    /**
+     * Allocates memory, slabs grow twice up to {@link #MAX_SLAB_BYTES} and larger allocations get slabs of their own.
+     *
+     * @param bytes to allocate
+     * @return address of the allocated memory
+     */
+    long allocate(final int bytes) {
+        final int aligned = (bytes + ALIGNMENT - 1) & -ALIGNMENT;
+        lock.lock();
+        try {
+            size += aligned;
+            published = size;
+            if (aligned > MAX_SLAB_BYTES) {
+                return address(add(ByteBuffer.allocateDirect(aligned)), 0);
+            }
+            if (current < 0 || slabs[current].capacity() - used < aligned) {
+                final int capacity = current < 0 ? MIN_SLAB_BYTES : slabs[current].capacity() * 2;
+                current = add(ByteBuffer.allocateDirect(Math.max(aligned, Math.min(capacity, MAX_SLAB_BYTES))));
+                used = 0;
+            }
+            final long address = address(current, used);
+            used += aligned;
+            return address;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slab holding the address.
+     *
+     * @param address of allocated memory
+     * @return slab with position and limit never changed, see {@link #offset(long)}
+     */
+    @NotNull
+    ByteBuffer slab(final long address) {
+        return slabs[(int) (address >>> Integer.SIZE)];
+    }
+
+    static int offset(final long address) {
+        return (int) address;
+    }
+
+    /**
+     * Returns bytes allocated so far, including alignment.
+     *
+     * @return size in bytes
+     */
+    long size() {
+        return published;
+    }
+
+    private int add(@NotNull final ByteBuffer slab) {
+        final ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+        grown[slabs.length] = slab;
+        slabs = grown;
+        return slabs.length - 1;
+    }
+
+    private static long address(
+            final int slab,
+            final int offset) {
+        return (long) slab << Integer.SIZE | offset;
+    }
+}
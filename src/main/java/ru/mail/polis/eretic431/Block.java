@@ -0,0 +1,403 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Rows of SSTable stored together and read at once.
+ * A block is rows followed by offsets of restart rows (int each), base timestamp (long) and number of restarts (int).
+ * Rows are varints of shared key prefix length, key suffix length, value length + 1 (0 for tombstones) and
+ * zigzag difference of timestamp and the base one followed by key suffix and value.
+ * The prefix is shared with the key of the previous row.
+ * Every {@link #RESTART_INTERVAL}th row is a restart sharing nothing, so a lookup binary searches restarts
+ * and decodes rows of a single interval. Keys sharing nothing are read in place, keys sharing a prefix are copied.
+ * Blocks of older tables have fixed size row headers and no base timestamp, see {@link #PLAIN} and {@link #PREFIXED}.
+ * Reads use absolute positions only, so a block may be shared by threads, each reading with its own {@link Cursor}.
+ */
+final class Block {
+    static final int RESTART_INTERVAL = 16;
+
+    /**
+     * Format of rows with key length (long), key, timestamp (long), value length (long, -1 for tombstones)
+     * and value. Every row is a restart.
+     */
+    static final int PLAIN = 0;
+
+    /**
+     * Format of rows with shared key prefix length (int), key suffix length (int), key suffix,
+     * timestamp (long), value length (long, -1 for tombstones) and value.
+     */
+    static final int PREFIXED = 1;
+
+    /**
+     * Format of rows with varint headers described above.
+     */
+    static final int COMPACT = 2;
+
+    // Longer keys share nothing, so they are read in place instead of being copied to restore them
+    private static final int MAX_SHARED_KEY_BYTES = 1024;
+
+    private final ByteBuffer data;
+    private final int format;
+    private final int restarts;
+    private final int restartOffsets;
+    private final long baseTimestamp;
+
+    /**
+     * Wraps block contents.
+     *
+     * @param data   is a block from position 0 to limit
+     * @param format of the rows, one of {@link #PLAIN}, {@link #PREFIXED} and {@link #COMPACT}
+     */
+    Block(
+            @NotNull final ByteBuffer data,
+            final int format) {
+        this.data = data;
+        this.format = format;
+        this.restarts = data.getInt(data.limit() - Integer.BYTES);
+        if (format == COMPACT) {
+            this.baseTimestamp = data.getLong(data.limit() - Integer.BYTES - Long.BYTES);
+            this.restartOffsets = data.limit() - Integer.BYTES * (restarts + 1) - Long.BYTES;
+        } else {
+            this.baseTimestamp = 0;
+            this.restartOffsets = data.limit() - Integer.BYTES * (restarts + 1);
+        }
+    }
+
+    /**
+     * Creates a cursor before the first row.
+     *
+     * @return cursor over every row of the block
+     */
+    @NotNull
+    Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    /**
+     * Creates a cursor before the first row with key not less than the given one.
+     *
+     * @param key is a key to look for
+     * @return cursor over rows starting from {@param key}
+     */
+    @NotNull
+    Cursor seek(@NotNull final ByteBuffer key) {
+        final Cursor cursor = new Cursor(0);
+        int low = 0;
+        int high = restarts - 1;
+        while (low <= high) {
+            final int pivot = (low + high) >>> 1;
+            cursor.position = restart(pivot);
+            cursor.advance();
+            if (cursor.compareKey(key) <= 0) {
+                low = pivot + 1;
+            } else {
+                high = pivot - 1;
+            }
+        }
+
+        cursor.position = restart(Math.max(low - 1, 0));
+        boolean found;
+        do {
+            found = cursor.advance();
+        } while (found && cursor.compareKey(key) < 0);
+        cursor.pending = found;
+        return cursor;
+    }
+
+    /**
+     * Returns key of the last row.
+     *
+     * @return the greatest key of the block
+     */
+    @NotNull
+    ByteBuffer lastKey() {
+        final Cursor cursor = new Cursor(restart(restarts - 1));
+        while (cursor.advance()) {
+            // Keys of an interval are known after decoding every previous row of it
+        }
+        return cursor.key();
+    }
+
+    private int restart(final int index) {
+        return data.getInt(restartOffsets + index * Integer.BYTES);
+    }
+
+    private ByteBuffer slice(
+            final int offset,
+            final int length) {
+        final ByteBuffer slice = data.duplicate();
+        slice.position(offset).limit(offset + length);
+        return slice.slice();
+    }
+
+    /**
+     * Reads rows of the block one by one, restoring keys from shared prefixes.
+     * Decoding a row allocates nothing, only {@link #key()} and {@link #value()} do.
+     * A cursor must not be shared by threads.
+     */
+    final class Cursor {
+        private final ByteBuffer source = data.duplicate();
+        private int position;
+        private boolean pending;
+        // Key of the current row is either at the offset of the block or restored in the buffer
+        private boolean keyInBlock;
+        private byte[] keyBuffer;
+        private ByteBuffer keyView;
+        private int keyOffset;
+        private int keyLength;
+        private long timestamp;
+        private int valueOffset;
+        private long valueLength;
+
+        private Cursor(final int position) {
+            this.position = position;
+        }
+
+        /**
+         * Moves to the next row.
+         *
+         * @return false if there are no rows left
+         */
+        boolean next() {
+            if (pending) {
+                pending = false;
+                return true;
+            }
+            return advance();
+        }
+
+        /**
+         * Compares key of the current row with the given one without copying it.
+         *
+         * @param key is a key to compare with
+         * @return the same as {@link ByteBuffer#compareTo(ByteBuffer)} of the current key and {@param key}
+         */
+        int compareKey(@NotNull final ByteBuffer key) {
+            if (!keyInBlock) {
+                return Keys.compare(keyView, 0, keyLength, key);
+            }
+            return Keys.compare(data, keyOffset, keyLength, key);
+        }
+
+        /**
+         * Returns key of the current row.
+         *
+         * @return key owned by the caller
+         */
+        @NotNull
+        ByteBuffer key() {
+            if (!keyInBlock) {
+                return ByteBuffer.wrap(Arrays.copyOf(keyBuffer, keyLength));
+            }
+            return slice(keyOffset, keyLength);
+        }
+
+        @NotNull
+        Value value() {
+            if (valueLength < 0) {
+                return Value.tombstone(timestamp);
+            }
+            return Value.of(timestamp, slice(valueOffset, (int) valueLength));
+        }
+
+        @NotNull
+        Row row() {
+            return Row.of(key(), value());
+        }
+
+        private boolean advance() {
+            if (position >= restartOffsets) {
+                return false;
+            }
+            source.limit(restartOffsets).position(position);
+            if (format == PLAIN) {
+                keyInBlock = true;
+                keyLength = (int) source.getLong();
+                keyOffset = source.position();
+                source.position(keyOffset + keyLength);
+                timestamp = source.getLong();
+                valueLength = source.getLong();
+            } else {
+                final int shared;
+                final int suffix;
+                if (format == COMPACT) {
+                    shared = (int) Varints.get(source);
+                    suffix = (int) Varints.get(source);
+                    valueLength = Varints.get(source) - 1;
+                    timestamp = baseTimestamp + Varints.unZigZag(Varints.get(source));
+                } else {
+                    shared = source.getInt();
+                    suffix = source.getInt();
+                }
+                final int suffixOffset = source.position();
+                restoreKey(shared, suffix, suffixOffset);
+                source.limit(restartOffsets).position(suffixOffset + suffix);
+                if (format == PREFIXED) {
+                    timestamp = source.getLong();
+                    valueLength = source.getLong();
+                }
+            }
+            valueOffset = source.position();
+            position = valueOffset + (valueLength < 0 ? 0 : (int) valueLength);
+            return true;
+        }
+
+        private void restoreKey(
+                final int shared,
+                final int suffix,
+                final int suffixOffset) {
+            if (shared == 0) {
+                keyInBlock = true;
+                keyOffset = suffixOffset;
+                keyLength = suffix;
+                return;
+            }
+            if (keyBuffer == null || shared + suffix > keyBuffer.length) {
+                keyBuffer = keyBuffer == null
+                        ? new byte[Math.max(64, shared + suffix)]
+                        : Arrays.copyOf(keyBuffer, Math.max(keyBuffer.length * 2, shared + suffix));
+                keyView = ByteBuffer.wrap(keyBuffer);
+            }
+            if (keyInBlock) {
+                source.limit(keyOffset + shared).position(keyOffset);
+                source.get(keyBuffer, 0, shared);
+                keyInBlock = false;
+            }
+            source.limit(suffixOffset + suffix).position(suffixOffset);
+            source.get(keyBuffer, shared, suffix);
+            keyLength = shared + suffix;
+        }
+    }
+
+    /**
+     * Accumulates rows of a block being written in {@link #COMPACT} format.
+     */
+    static final class Builder {
+        private ByteBuffer buffer;
+        private int[] restarts = new int[16];
+        private int restartCount;
+        private int rows;
+        private long baseTimestamp;
+        private byte[] lastKey = new byte[64];
+        private ByteBuffer lastKeyView = ByteBuffer.wrap(lastKey);
+        private int lastLength;
+
+        Builder(final int blockSize) {
+            this.buffer = ByteBuffer.allocate(blockSize * 2);
+        }
+
+        boolean isEmpty() {
+            return rows == 0;
+        }
+
+        /**
+         * Returns size of the block with rows added so far.
+         *
+         * @return size in bytes
+         */
+        int size() {
+            return buffer.position() + Integer.BYTES * (restartCount + 1) + Long.BYTES;
+        }
+
+        void add(
+                @NotNull final ByteBuffer key,
+                @NotNull final Value value) {
+            final int length = key.remaining();
+            int shared = 0;
+            if (rows % RESTART_INTERVAL == 0) {
+                restart();
+            } else if (length <= MAX_SHARED_KEY_BYTES) {
+                shared = Keys.mismatch(lastKeyView, 0, key, key.position(), Math.min(length, lastLength));
+            }
+            if (rows == 0) {
+                baseTimestamp = value.getTimestamp();
+            }
+
+            final ByteBuffer data = value.getData();
+            final int valueLength = data == null ? 0 : data.remaining();
+            final long storedLength = data == null ? 0 : valueLength + 1L;
+            final long delta = Varints.zigZag(value.getTimestamp() - baseTimestamp);
+            ensure(Varints.size(shared) + Varints.size(length - shared) + Varints.size(storedLength)
+                    + Varints.size(delta) + length - shared + valueLength);
+            Varints.put(buffer, shared);
+            Varints.put(buffer, length - shared);
+            Varints.put(buffer, storedLength);
+            Varints.put(buffer, delta);
+            put(buffer, key, shared);
+            if (data != null) {
+                put(buffer, data, 0);
+            }
+
+            if (length <= MAX_SHARED_KEY_BYTES) {
+                if (length > lastKey.length) {
+                    lastKey = Arrays.copyOf(lastKey, Math.max(lastKey.length * 2, length));
+                    lastKeyView = ByteBuffer.wrap(lastKey);
+                }
+                for (int i = shared; i < length; i++) {
+                    lastKey[i] = key.get(key.position() + i);
+                }
+            }
+            lastLength = length <= MAX_SHARED_KEY_BYTES ? length : 0;
+            rows++;
+        }
+
+        /**
+         * Copies remaining bytes of the source without moving its position, which may be shared by readers.
+         *
+         * @param dst  is a buffer to copy to
+         * @param src  is a buffer to copy from
+         * @param skip is a number of leading bytes not to copy
+         */
+        static void put(
+                @NotNull final ByteBuffer dst,
+                @NotNull final ByteBuffer src,
+                final int skip) {
+            if (src.hasArray()) {
+                dst.put(src.array(), src.arrayOffset() + src.position() + skip, src.remaining() - skip);
+            } else {
+                final ByteBuffer view = src.duplicate();
+                view.position(view.position() + skip);
+                dst.put(view);
+            }
+        }
+
+        private void restart() {
+            if (restartCount == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restartCount * 2);
+            }
+            restarts[restartCount++] = buffer.position();
+        }
+
+        /**
+         * Completes the block and starts the next one.
+         *
+         * @return contents of the completed block, valid until the next call to {@link #add(ByteBuffer, Value)}
+         */
+        @NotNull
+        ByteBuffer finish() {
+            ensure(Integer.BYTES * (restartCount + 1) + Long.BYTES);
+            for (int i = 0; i < restartCount; i++) {
+                buffer.putInt(restarts[i]);
+            }
+            buffer.putLong(baseTimestamp).putInt(restartCount);
+            rows = 0;
+            restartCount = 0;
+            buffer.flip();
+            final ByteBuffer block = buffer.duplicate();
+            buffer.clear();
+            return block;
+        }
+
+        private void ensure(final int bytes) {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            buffer = grown.put(buffer);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decoded SSTable blocks shared by tables of a {@link LsmDAO}, bounded by bytes of the blocks.
+ * Eviction is segmented LRU: blocks enter the probation segment and move to the protected one on the second hit,
+ * so a scan touching every block once evicts only other blocks seen once.
+ * Blocks are spread over shards with separate locks.
+ * The capacity may be lowered below the configured one at runtime to fit a memory budget, see {@link #limit(long)}.
+ */
+final class BlockCache {
+    private static final int SHARDS = 16;
+    // Node, key, map entry and Block wrapper of a cached block
+    private static final int ENTRY_OVERHEAD = 160;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long capacity;
+    private volatile long limit = Long.MAX_VALUE;
+
+    /**
+     * Creates empty cache.
+     *
+     * @param capacity in bytes of cached blocks
+     */
+    BlockCache(final long capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Looks the block up.
+     *
+     * @param table  is generation of the table
+     * @param offset of the block in the table file
+     * @return cached block, null if there is none
+     */
+    @Nullable
+    Block get(
+            final int table,
+            final long offset) {
+        final Key key = new Key(table, offset);
+        return shard(key).get(key, shardCapacity());
+    }
+
+    /**
+     * Caches the block unless it alone exceeds a shard, evicting other blocks to fit it.
+     *
+     * @param table  is generation of the table
+     * @param offset of the block in the table file
+     * @param block  is the decoded block
+     * @param bytes  the decoded block takes
+     */
+    void put(
+            final int table,
+            final long offset,
+            @NotNull final Block block,
+            final int bytes) {
+        final Key key = new Key(table, offset);
+        shard(key).put(key, block, bytes + ENTRY_OVERHEAD, shardCapacity());
+    }
+
+    /**
+     * Lowers capacity of the cache below the configured one, evicting blocks at once if they do not fit.
+     *
+     * @param bytes the cache may take, the configured capacity applies if it is less
+     */
+    void limit(final long bytes) {
+        limit = bytes;
+        if (size() > bytes) {
+            final long shardCapacity = shardCapacity();
+            for (final Shard shard : shards) {
+                shard.trim(shardCapacity);
+            }
+        }
+    }
+
+    /**
+     * Evicts every block of the table, called once its file is deleted.
+     *
+     * @param table is generation of the table
+     */
+    void invalidate(final int table) {
+        for (final Shard shard : shards) {
+            shard.invalidate(table);
+        }
+    }
+
+    /**
+     * Returns bytes taken by cached blocks.
+     *
+     * @return size in bytes
+     */
+    long size() {
+        long size = 0;
+        for (final Shard shard : shards) {
+            size += shard.published;
+        }
+        return size;
+    }
+
+    private long shardCapacity() {
+        return Math.min(capacity, limit) / SHARDS;
+    }
+
+    private Shard shard(@NotNull final Key key) {
+        final int hash = key.hashCode();
+        return shards[(hash ^ hash >>> 16) & (SHARDS - 1)];
+    }
+
+    private static final class Key {
+        private final int table;
+        private final long offset;
+
+        Key(
+                final int table,
+                final long offset) {
+            this.table = table;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return table == key.table && offset == key.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * table + Long.hashCode(offset * 0x9E3779B97F4A7C15L);
+        }
+    }
+
+    private static final class Node {
+        private final Key key;
+        private final Block block;
+        private final int bytes;
+        private boolean protect;
+        private Node prev = this;
+        private Node next = this;
+
+        Node(
+                final Key key,
+                final Block block,
+                final int bytes) {
+            this.key = key;
+            this.block = block;
+            this.bytes = bytes;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+        }
+
+        /**
+         * Links the node as the most recently used one of the segment.
+         *
+         * @param head is a sentinel of the segment, its next node is the least recently used one
+         */
+        void linkBefore(@NotNull final Node head) {
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
+        }
+    }
+
+    private static final class Shard {
+        private final Lock lock = new ReentrantLock();
+        private final Map<Key, Node> nodes = new HashMap<>();
+        private final Node probation = new Node(null, null, 0);
+        private final Node protect = new Node(null, null, 0);
+        private long size;
+        // Copy of the size published after changes under the lock, read without it to sum sizes of shards
+        private volatile long published;
+        private long protectedSize;
+
+        Block get(
+                @NotNull final Key key,
+                final long capacity) {
+            lock.lock();
+            try {
+                final Node node = nodes.get(key);
+                if (node == null) {
+                    return null;
+                }
+                node.unlink();
+                node.linkBefore(protect);
+                if (!node.protect) {
+                    node.protect = true;
+                    protectedSize += node.bytes;
+                    // Demoted blocks get another chance in probation before eviction
+                    while (protectedSize > capacity * PROTECTED_PERCENT / 100) {
+                        final Node demoted = protect.next;
+                        demoted.unlink();
+                        demoted.linkBefore(probation);
+                        demoted.protect = false;
+                        protectedSize -= demoted.bytes;
+                    }
+                }
+                return node.block;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(
+                @NotNull final Key key,
+                @NotNull final Block block,
+                final int bytes,
+                final long capacity) {
+            if (bytes > capacity) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (nodes.containsKey(key)) {
+                    return;
+                }
+                final Node node = new Node(key, block, bytes);
+                nodes.put(key, node);
+                node.linkBefore(probation);
+                size += bytes;
+                evict(capacity);
+                published = size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void trim(final long capacity) {
+            lock.lock();
+            try {
+                evict(capacity);
+                published = size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidate(final int table) {
+            lock.lock();
+            try {
+                final Iterator<Node> iterator = nodes.values().iterator();
+                while (iterator.hasNext()) {
+                    final Node node = iterator.next();
+                    if (node.key.table == table) {
+                        iterator.remove();
+                        unlink(node);
+                    }
+                }
+                published = size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void evict(final long capacity) {
+            while (size > capacity) {
+                remove(probation.next == probation ? protect.next : probation.next);
+            }
+        }
+
+        private void remove(@NotNull final Node node) {
+            nodes.remove(node.key);
+            unlink(node);
+        }
+
+        private void unlink(@NotNull final Node node) {
+            node.unlink();
+            size -= node.bytes;
+            if (node.protect) {
+                protectedSize -= node.bytes;
+            }
+        }
+    }
+}
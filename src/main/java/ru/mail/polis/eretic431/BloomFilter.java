@@ -0,0 +1,111 @@
+package ru.mail.polis.eretic431;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over the keys of a single {@link SSTable}.
+ * A negative answer of {@link #mightContain(ByteBuffer)} is exact, a positive one is probable.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final long MIN_BITS = 16 * BITS_PER_KEY;
+    // 128 MB of heap, larger tables get more false positives instead
+    private static final long MAX_BITS = 1L << 30;
+    private static final int HASHES = 7;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final long[] words;
+    private final int hashes;
+    private final long bitSize;
+
+    private BloomFilter(@NotNull final long[] words, final int hashes) {
+        this.words = words;
+        this.hashes = hashes;
+        this.bitSize = (long) words.length * Long.SIZE;
+    }
+
+    /**
+     * Creates empty filter to be filled by {@link #put(ByteBuffer)}.
+     * The filter takes {@link #BITS_PER_KEY} bits per key, at least for 16 keys and at most {@link #MAX_BITS} bits.
+     *
+     * @param expectedKeys is a number of keys the filter is sized for
+     * @return empty filter
+     */
+    @NotNull
+    static BloomFilter create(final long expectedKeys) {
+        final long bits = expectedKeys > MAX_BITS / BITS_PER_KEY
+                ? MAX_BITS
+                : Math.max(MIN_BITS, expectedKeys * BITS_PER_KEY);
+        return new BloomFilter(new long[(int) ((bits + Long.SIZE - 1) / Long.SIZE)], HASHES);
+    }
+
+    /**
+     * Reads filter written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param buffer with filter words at its position
+     * @param length of the filter in words
+     * @param hashes is a number of hash functions the filter was built with
+     * @return filter backed by a heap copy of the words
+     */
+    @NotNull
+    static BloomFilter read(
+            @NotNull final ByteBuffer buffer,
+            final int length,
+            final int hashes) {
+        final long[] words = new long[length];
+        buffer.asLongBuffer().get(words);
+        return new BloomFilter(words, hashes);
+    }
+
+    private static long hash(@NotNull final ByteBuffer key) {
+        return HASH.hashBytes(key.duplicate()).asLong();
+    }
+
+    void put(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bit(hash1, hash2, i);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bit(hash1, hash2, i);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int hashes() {
+        return hashes;
+    }
+
+    int length() {
+        return words.length;
+    }
+
+    void writeTo(@NotNull final ByteBuffer buffer) {
+        buffer.asLongBuffer().put(words);
+        buffer.position(buffer.position() + words.length * Long.BYTES);
+    }
+
+    private long bit(final int hash1, final int hash2, final int i) {
+        int combined = hash1 + i * hash2;
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % bitSize;
+    }
+}
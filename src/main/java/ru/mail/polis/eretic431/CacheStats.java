@@ -0,0 +1,43 @@
+package ru.mail.polis.eretic431;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Block cache lookups of a table, counting blocks which have to be decoded only.
+ */
+public final class CacheStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns share of lookups served by the cache.
+     *
+     * @return hit rate from 0 to 1, 0 if there were no lookups
+     */
+    public double getHitRate() {
+        final long hitCount = getHits();
+        final long total = hitCount + getMisses();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + ", misses=" + getMisses();
+    }
+}
@@ -0,0 +1,37 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses SSTable blocks.
+ * Codecs are stateless, so a single instance is shared by every writer and reader.
+ */
+interface Codec {
+    /**
+     * Returns size of a buffer enough to hold compressed data of any contents.
+     *
+     * @param length of uncompressed data
+     * @return size in bytes
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Compresses remaining bytes of the source into the destination.
+     *
+     * @param src is uncompressed data, backed by an array
+     * @param dst backed by an array with at least {@link #maxCompressedLength(int)} bytes remaining,
+     *            its position is moved past the compressed data
+     */
+    void compress(@NotNull ByteBuffer src, @NotNull ByteBuffer dst);
+
+    /**
+     * Decompresses remaining bytes of the source, filling the destination up to its limit.
+     *
+     * @param src is compressed data, may be mapped from a file
+     * @param dst backed by an array with exactly the uncompressed length remaining
+     * @throws IllegalArgumentException when the source is malformed
+     */
+    void decompress(@NotNull ByteBuffer src, @NotNull ByteBuffer dst);
+}
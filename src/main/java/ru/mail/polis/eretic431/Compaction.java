@@ -0,0 +1,53 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Tables to merge together and where the result goes.
+ */
+final class Compaction {
+    @NotNull
+    final Collection<SSTable> inputs;
+    final int level;
+    final boolean dropTombstones;
+    final boolean merge;
+
+    /**
+     * Describes compaction.
+     *
+     * @param inputs         are tables to merge
+     * @param level          the merged tables are written to
+     * @param dropTombstones is true if no older version of the merged keys is left outside {@param inputs}
+     */
+    Compaction(
+            @NotNull final Collection<SSTable> inputs,
+            final int level,
+            final boolean dropTombstones) {
+        this(inputs, level, dropTombstones, true);
+    }
+
+    private Compaction(
+            @NotNull final Collection<SSTable> inputs,
+            final int level,
+            final boolean dropTombstones,
+            final boolean merge) {
+        this.inputs = Collections.unmodifiableCollection(inputs);
+        this.level = level;
+        this.dropTombstones = dropTombstones;
+        this.merge = merge;
+    }
+
+    /**
+     * Describes compaction which deletes tables with everything they hold.
+     *
+     * @param inputs are tables to delete
+     * @return compaction without result
+     */
+    @NotNull
+    static Compaction drop(@NotNull final Collection<SSTable> inputs) {
+        return new Compaction(inputs, 0, true, false);
+    }
+}
@@ -0,0 +1,37 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides which tables on disk {@link LsmDAO} compacts and where the result goes.
+ * Compactions are picked under the compaction lock, so implementations need not be thread-safe
+ * except for {@link #isNeeded(TableSet)}.
+ */
+interface CompactionStrategy {
+    /**
+     * Checks whether background compaction should be started, called without the compaction lock.
+     *
+     * @param tables is the current table set
+     * @return true if {@link #pick(TableSet)} has something to do
+     */
+    boolean isNeeded(@NotNull TableSet tables);
+
+    /**
+     * Picks the most urgent compaction to run in background.
+     *
+     * @param tables is the current table set
+     * @return null if there is nothing to do
+     */
+    @Nullable
+    Compaction pick(@NotNull TableSet tables);
+
+    /**
+     * Picks compaction requested by {@link LsmDAO#compact()}.
+     *
+     * @param tables is the current table set
+     * @return null if there is nothing to do
+     */
+    @Nullable
+    Compaction full(@NotNull TableSet tables);
+}
@@ -0,0 +1,40 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compaction strategies {@link LsmDAO} can be configured with.
+ */
+public enum CompactionStyle {
+    /**
+     * Sorted runs of non-overlapping tables growing level by level, favours reads and space.
+     */
+    LEVELED {
+        @Override
+        CompactionStrategy create(@NotNull final Config config) {
+            return new LeveledCompaction(config);
+        }
+    },
+
+    /**
+     * Merges runs of tables of similar size, favours writes.
+     */
+    SIZE_TIERED {
+        @Override
+        CompactionStrategy create(@NotNull final Config config) {
+            return new SizeTieredCompaction(config);
+        }
+    },
+
+    /**
+     * Never merges, drops the oldest tables once they expire or exceed the size limit.
+     */
+    FIFO {
+        @Override
+        CompactionStrategy create(@NotNull final Config config) {
+            return new FifoCompaction(config);
+        }
+    };
+
+    abstract CompactionStrategy create(@NotNull Config config);
+}
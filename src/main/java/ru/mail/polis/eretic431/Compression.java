@@ -0,0 +1,65 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compression of SSTable blocks {@link LsmDAO} can be configured with.
+ * Tables record their compression, so tables written with any of them are readable whatever is configured.
+ */
+public enum Compression {
+    /**
+     * Stores blocks as they are.
+     */
+    NONE(0, null),
+
+    /**
+     * Pure Java LZ77 codec, fast enough to keep up with flushes, good at text and repeated keys.
+     */
+    LZ(1, new LzCodec());
+
+    private final int id;
+    @Nullable
+    private final Codec codec;
+
+    Compression(
+            final int id,
+            @Nullable final Codec codec) {
+        this.id = id;
+        this.codec = codec;
+    }
+
+    /**
+     * Returns identifier of the compression stored in tables.
+     *
+     * @return identifier which never changes
+     */
+    int id() {
+        return id;
+    }
+
+    /**
+     * Returns codec of the compression.
+     *
+     * @return codec, null for {@link #NONE}
+     */
+    @Nullable
+    Codec codec() {
+        return codec;
+    }
+
+    /**
+     * Finds compression by identifier stored in a table.
+     *
+     * @param id is identifier of the compression
+     * @return compression, null if {@param id} is unknown
+     */
+    @Nullable
+    static Compression of(final int id) {
+        for (final Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,439 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tunables of {@link LsmDAO}.
+ */
+public final class Config {
+    public static final long DEFAULT_FLUSH_THRESHOLD = 1024 * 1024;
+    public static final int DEFAULT_MAX_PENDING_FLUSHES = 1;
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+    public static final long DEFAULT_LEVEL_BASE_SIZE = 10 * 1024 * 1024;
+    public static final int DEFAULT_LEVEL_SIZE_RATIO = 10;
+    public static final long DEFAULT_TARGET_TABLE_SIZE = 2 * 1024 * 1024;
+    public static final CompactionStyle DEFAULT_COMPACTION_STYLE = CompactionStyle.LEVELED;
+    public static final Durability DEFAULT_DURABILITY = Durability.ON_FLUSH;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    public static final long DEFAULT_SYNC_BYTES = 1024 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public static final Compression DEFAULT_COMPRESSION = Compression.LZ;
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 8 * 1024 * 1024;
+    public static final Verification DEFAULT_VERIFICATION = Verification.FIRST_TOUCH;
+    public static final long DEFAULT_SCRUB_INTERVAL = 60 * 1000;
+    public static final long DEFAULT_MEMORY_BUDGET = Long.MAX_VALUE;
+
+    private final long flushThreshold;
+    private final int maxPendingFlushes;
+    private final int compactionThreshold;
+    private final long levelBaseSize;
+    private final int levelSizeRatio;
+    private final long targetTableSize;
+    @NotNull
+    private final CompactionStyle compactionStyle;
+    private final long maxTotalSize;
+    private final long ttl;
+    @NotNull
+    private final Durability durability;
+    private final long syncInterval;
+    private final long syncBytes;
+    private final int blockSize;
+    @NotNull
+    private final Compression compression;
+    private final long blockCacheSize;
+    private final Verification verification;
+    private final long scrubInterval;
+    private final long memoryBudget;
+
+    private Config(@NotNull final Builder builder) {
+        this.flushThreshold = builder.flushThreshold;
+        this.maxPendingFlushes = builder.maxPendingFlushes;
+        this.compactionThreshold = builder.compactionThreshold;
+        this.levelBaseSize = builder.levelBaseSize;
+        this.levelSizeRatio = builder.levelSizeRatio;
+        this.targetTableSize = builder.targetTableSize;
+        this.compactionStyle = builder.compactionStyle;
+        this.maxTotalSize = builder.maxTotalSize;
+        this.ttl = builder.ttl;
+        this.durability = builder.durability;
+        this.syncInterval = builder.syncInterval;
+        this.syncBytes = builder.syncBytes;
+        this.blockSize = builder.blockSize;
+        this.compression = builder.compression;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.verification = builder.verification;
+        this.scrubInterval = builder.scrubInterval;
+        this.memoryBudget = builder.memoryBudget;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public long getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    public int getMaxPendingFlushes() {
+        return maxPendingFlushes;
+    }
+
+    public int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public long getLevelBaseSize() {
+        return levelBaseSize;
+    }
+
+    public int getLevelSizeRatio() {
+        return levelSizeRatio;
+    }
+
+    public long getTargetTableSize() {
+        return targetTableSize;
+    }
+
+    @NotNull
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    public long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    @NotNull
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public long getSyncBytes() {
+        return syncBytes;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @NotNull
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    @NotNull
+    public Verification getVerification() {
+        return verification;
+    }
+
+    public long getScrubInterval() {
+        return scrubInterval;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public static final class Builder {
+        private long flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+        private int maxPendingFlushes = DEFAULT_MAX_PENDING_FLUSHES;
+        private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+        private long levelBaseSize = DEFAULT_LEVEL_BASE_SIZE;
+        private int levelSizeRatio = DEFAULT_LEVEL_SIZE_RATIO;
+        private long targetTableSize = DEFAULT_TARGET_TABLE_SIZE;
+        private CompactionStyle compactionStyle = DEFAULT_COMPACTION_STYLE;
+        private long maxTotalSize = Long.MAX_VALUE;
+        private long ttl;
+        private Durability durability = DEFAULT_DURABILITY;
+        private long syncInterval = DEFAULT_SYNC_INTERVAL;
+        private long syncBytes = DEFAULT_SYNC_BYTES;
+        private int blockSize = DEFAULT_BLOCK_SIZE;
+        private Compression compression = DEFAULT_COMPRESSION;
+        private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+        private Verification verification = DEFAULT_VERIFICATION;
+        private long scrubInterval = DEFAULT_SCRUB_INTERVAL;
+        private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+        private Builder() {
+            // Use Config.builder()
+        }
+
+        /**
+         * Sets size of memory table after which it is frozen and flushed.
+         *
+         * @param flushThreshold in bytes of keys and values
+         * @return this builder
+         */
+        @NotNull
+        public Builder flushThreshold(final long flushThreshold) {
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        /**
+         * Sets how many frozen memory tables may wait for flush before writers are blocked.
+         *
+         * @param maxPendingFlushes is a positive number of frozen memory tables
+         * @return this builder
+         */
+        @NotNull
+        public Builder maxPendingFlushes(final int maxPendingFlushes) {
+            if (maxPendingFlushes <= 0) {
+                throw new IllegalArgumentException("Pending flushes limit must be positive");
+            }
+            this.maxPendingFlushes = maxPendingFlushes;
+            return this;
+        }
+
+        /**
+         * Sets number of flushed tables in level 0 at which they are compacted into level 1 in background.
+         *
+         * @param compactionThreshold is a number of tables, at least 2
+         * @return this builder
+         */
+        @NotNull
+        public Builder compactionThreshold(final int compactionThreshold) {
+            if (compactionThreshold < 2) {
+                throw new IllegalArgumentException("Compaction threshold must be at least 2");
+            }
+            this.compactionThreshold = compactionThreshold;
+            return this;
+        }
+
+        /**
+         * Sets size of level 1, deeper levels are {@link #levelSizeRatio(int)} times bigger each.
+         *
+         * @param levelBaseSize in bytes of tables
+         * @return this builder
+         */
+        @NotNull
+        public Builder levelBaseSize(final long levelBaseSize) {
+            if (levelBaseSize <= 0) {
+                throw new IllegalArgumentException("Level size must be positive");
+            }
+            this.levelBaseSize = levelBaseSize;
+            return this;
+        }
+
+        /**
+         * Sets how many times each level is bigger than the previous one.
+         *
+         * @param levelSizeRatio is a ratio, at least 2
+         * @return this builder
+         */
+        @NotNull
+        public Builder levelSizeRatio(final int levelSizeRatio) {
+            if (levelSizeRatio < 2) {
+                throw new IllegalArgumentException("Level size ratio must be at least 2");
+            }
+            this.levelSizeRatio = levelSizeRatio;
+            return this;
+        }
+
+        /**
+         * Sets size after which compaction starts a new table.
+         *
+         * @param targetTableSize in bytes of keys and values
+         * @return this builder
+         */
+        @NotNull
+        public Builder targetTableSize(final long targetTableSize) {
+            if (targetTableSize <= 0) {
+                throw new IllegalArgumentException("Table size must be positive");
+            }
+            this.targetTableSize = targetTableSize;
+            return this;
+        }
+
+        /**
+         * Sets how tables on disk are compacted.
+         *
+         * @param compactionStyle is a compaction strategy
+         * @return this builder
+         */
+        @NotNull
+        public Builder compactionStyle(@NotNull final CompactionStyle compactionStyle) {
+            this.compactionStyle = compactionStyle;
+            return this;
+        }
+
+        /**
+         * Sets size of tables on disk after which {@link CompactionStyle#FIFO} drops the oldest ones.
+         *
+         * @param maxTotalSize in bytes of tables
+         * @return this builder
+         */
+        @NotNull
+        public Builder maxTotalSize(final long maxTotalSize) {
+            if (maxTotalSize <= 0) {
+                throw new IllegalArgumentException("Total size must be positive");
+            }
+            this.maxTotalSize = maxTotalSize;
+            return this;
+        }
+
+        /**
+         * Sets time after which {@link CompactionStyle#FIFO} drops a flushed table.
+         *
+         * @param ttl in milliseconds, 0 to keep tables forever
+         * @return this builder
+         */
+        @NotNull
+        public Builder ttl(final long ttl) {
+            if (ttl < 0) {
+                throw new IllegalArgumentException("Time to live must not be negative");
+            }
+            this.ttl = ttl;
+            return this;
+        }
+
+        /**
+         * Sets when written files are forced to disk.
+         *
+         * @param durability is a fsync policy
+         * @return this builder
+         */
+        @NotNull
+        public Builder durability(@NotNull final Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * Sets how long writes may stay in the log without fsync under {@link Durability#PERIODIC}.
+         *
+         * @param syncInterval in milliseconds
+         * @return this builder
+         */
+        @NotNull
+        public Builder syncInterval(final long syncInterval) {
+            if (syncInterval <= 0) {
+                throw new IllegalArgumentException("Sync interval must be positive");
+            }
+            this.syncInterval = syncInterval;
+            return this;
+        }
+
+        /**
+         * Sets how many bytes may be written to the log without fsync under {@link Durability#PERIODIC}.
+         *
+         * @param syncBytes in bytes of log records
+         * @return this builder
+         */
+        @NotNull
+        public Builder syncBytes(final long syncBytes) {
+            if (syncBytes <= 0) {
+                throw new IllegalArgumentException("Sync bytes must be positive");
+            }
+            this.syncBytes = syncBytes;
+            return this;
+        }
+
+        /**
+         * Sets size of SSTable blocks, rows of a block are read together.
+         * Smaller blocks make point lookups cheaper, bigger ones make the sparse index smaller.
+         *
+         * @param blockSize in bytes, at least 256
+         * @return this builder
+         */
+        @NotNull
+        public Builder blockSize(final int blockSize) {
+            if (blockSize < 256) {
+                throw new IllegalArgumentException("Block size must be at least 256 bytes");
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Sets how SSTable blocks are compressed, blocks which do not shrink are written raw anyway.
+         *
+         * @param compression is a codec of written tables
+         * @return this builder
+         */
+        @NotNull
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sets memory for decompressed blocks kept to serve repeated reads.
+         *
+         * @param blockCacheSize in bytes of decompressed blocks, 0 to decompress blocks on every read
+         * @return this builder
+         */
+        @NotNull
+        public Builder blockCacheSize(final long blockCacheSize) {
+            if (blockCacheSize < 0) {
+                throw new IllegalArgumentException("Block cache size must not be negative");
+            }
+            this.blockCacheSize = blockCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets when checksums of SSTable blocks are checked on reads.
+         *
+         * @param verification of blocks read
+         * @return this builder
+         */
+        @NotNull
+        public Builder verification(@NotNull final Verification verification) {
+            this.verification = verification;
+            return this;
+        }
+
+        /**
+         * Sets how often checksums of every block of one more table are checked in background,
+         * so damaged files are found before they are read.
+         *
+         * @param scrubInterval in milliseconds between tables checked, 0 not to check tables in background
+         * @return this builder
+         */
+        @NotNull
+        public Builder scrubInterval(final long scrubInterval) {
+            if (scrubInterval < 0) {
+                throw new IllegalArgumentException("Scrub interval must not be negative");
+            }
+            this.scrubInterval = scrubInterval;
+            return this;
+        }
+
+        /**
+         * Sets memory shared by memory tables, the block cache, indexes of tables
+         * and buffers tables are written through.
+         * The block cache shrinks to what memory tables and indexes leave,
+         * the memory table is flushed early once they alone do not fit.
+         *
+         * @param memoryBudget in bytes, {@link #DEFAULT_MEMORY_BUDGET} for no limit but the other settings
+         * @return this builder
+         */
+        @NotNull
+        public Builder memoryBudget(final long memoryBudget) {
+            if (memoryBudget <= 0) {
+                throw new IllegalArgumentException("Memory budget must be positive");
+            }
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        @NotNull
+        public Config build() {
+            return new Config(this);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * When {@link LsmDAO} forces written files to disk.
+ * Anything not forced survives a crash of the process, but may be lost with the machine.
+ */
+public enum Durability {
+    /**
+     * Never forces anything, leaves durability to the operating system.
+     */
+    NONE,
+
+    /**
+     * Forces tables and the manifest before they take effect and the log of a frozen memory table before its flush.
+     * Writes since the last freeze may be lost.
+     */
+    ON_FLUSH,
+
+    /**
+     * Forces like {@link #ON_FLUSH} and the log every {@link Config#getSyncInterval()} milliseconds
+     * or {@link Config#getSyncBytes()} bytes, whatever comes first.
+     */
+    PERIODIC,
+
+    /**
+     * Forces like {@link #ON_FLUSH} and the log before writes return, concurrent writes share a single fsync.
+     */
+    ALWAYS;
+
+    /**
+     * Checks whether tables and the manifest are forced.
+     *
+     * @return false for {@link #NONE} only
+     */
+    boolean syncsFiles() {
+        return this != NONE;
+    }
+
+    /**
+     * Forces directory entries, so files renamed into the directory survive a crash of the machine.
+     *
+     * @param directory is a directory to force
+     * @throws IOException when forcing goes wrong
+     */
+    static void syncDirectory(@NotNull final File directory) throws IOException {
+        try (FileChannel fc = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Never merges tables, drops the oldest ones instead.
+ * A table expires once it was flushed longer than time to live ago, so every row in it is older than that.
+ * Tables are dropped from the oldest one until the rest fit the total size limit.
+ * Only level 0 is managed, tables left on deeper levels by another strategy are neither counted nor dropped.
+ * Suits data written once and read while fresh, like metrics or logs.
+ */
+final class FifoCompaction implements CompactionStrategy {
+    private final long maxTotalSize;
+    private final long ttl;
+
+    FifoCompaction(@NotNull final Config config) {
+        this.maxTotalSize = config.getMaxTotalSize();
+        this.ttl = config.getTtl();
+    }
+
+    @Override
+    public boolean isNeeded(@NotNull final TableSet tables) {
+        return pick(tables) != null;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final TableSet tables) {
+        final List<SSTable> levelZero = tables.level(0);
+        long total = 0;
+        for (final SSTable sst : levelZero) {
+            total += sst.getSize();
+        }
+
+        final long expired = ttl > 0 ? System.currentTimeMillis() - ttl : Long.MIN_VALUE;
+        final List<SSTable> dropped = new ArrayList<>();
+        for (int i = levelZero.size() - 1; i >= 0; i--) {
+            final SSTable sst = levelZero.get(i);
+            if (total <= maxTotalSize && sst.file.lastModified() >= expired) {
+                break;
+            }
+            dropped.add(sst);
+            total -= sst.getSize();
+        }
+        return dropped.isEmpty() ? null : Compaction.drop(dropped);
+    }
+
+    /**
+     * Drops expired tables and tables over the size limit right away, nothing is merged.
+     */
+    @Nullable
+    @Override
+    public Compaction full(@NotNull final TableSet tables) {
+        return pick(tables);
+    }
+}
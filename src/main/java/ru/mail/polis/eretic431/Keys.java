@@ -0,0 +1,109 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Comparison of keys by absolute offsets, neither moving buffers nor allocating.
+ * Keys are ordered as by {@link ByteBuffer#compareTo(ByteBuffer)}: bytes are signed, a prefix goes first.
+ * Tables on disk are sorted so, hence the order must never change.
+ * Common prefixes are skipped by {@link Arrays#mismatch(byte[], int, int, byte[], int, int)} for heap buffers
+ * and by eight bytes at once for direct ones.
+ */
+final class Keys {
+    private Keys() {
+        // Not instantiable
+    }
+
+    /**
+     * Compares remaining bytes of buffers.
+     *
+     * @param left  is a key to compare
+     * @param right is a key to compare with
+     * @return negative, zero or positive as {@param left} is less, equal or greater than {@param right}
+     */
+    static int compare(
+            @NotNull final ByteBuffer left,
+            @NotNull final ByteBuffer right) {
+        return compare(left, left.position(), left.remaining(), right, right.position(), right.remaining());
+    }
+
+    /**
+     * Compares a region of a buffer with remaining bytes of another one.
+     *
+     * @param left       is a buffer holding a key to compare
+     * @param leftOffset is an absolute offset of the key in {@param left}
+     * @param leftLength is a length of the key
+     * @param right      is a key to compare with
+     * @return negative, zero or positive as the key is less, equal or greater than {@param right}
+     */
+    static int compare(
+            @NotNull final ByteBuffer left,
+            final int leftOffset,
+            final int leftLength,
+            @NotNull final ByteBuffer right) {
+        return compare(left, leftOffset, leftLength, right, right.position(), right.remaining());
+    }
+
+    /**
+     * Compares regions of buffers.
+     *
+     * @return negative, zero or positive as the left key is less, equal or greater than the right one
+     */
+    static int compare(
+            @NotNull final ByteBuffer left,
+            final int leftOffset,
+            final int leftLength,
+            @NotNull final ByteBuffer right,
+            final int rightOffset,
+            final int rightLength) {
+        final int length = Math.min(leftLength, rightLength);
+        final int prefix = mismatch(left, leftOffset, right, rightOffset, length);
+        if (prefix < length) {
+            return Byte.compare(left.get(leftOffset + prefix), right.get(rightOffset + prefix));
+        }
+        return Integer.compare(leftLength, rightLength);
+    }
+
+    /**
+     * Finds length of the common prefix of regions of buffers.
+     *
+     * @param length is a length of both regions
+     * @return index of the first differing byte, {@param length} if there is none
+     */
+    static int mismatch(
+            @NotNull final ByteBuffer left,
+            final int leftOffset,
+            @NotNull final ByteBuffer right,
+            final int rightOffset,
+            final int length) {
+        if (left.hasArray() && right.hasArray()) {
+            final int from = left.arrayOffset() + leftOffset;
+            final int to = right.arrayOffset() + rightOffset;
+            final int index = Arrays.mismatch(left.array(), from, from + length, right.array(), to, to + length);
+            return index < 0 ? length : index;
+        }
+        int index = 0;
+        if (left.order() == right.order()) {
+            final boolean bigEndian = left.order() == ByteOrder.BIG_ENDIAN;
+            for (; index <= length - Long.BYTES; index += Long.BYTES) {
+                final long difference = left.getLong(leftOffset + index) ^ right.getLong(rightOffset + index);
+                if (difference != 0) {
+                    final int bits = bigEndian
+                            ? Long.numberOfLeadingZeros(difference)
+                            : Long.numberOfTrailingZeros(difference);
+                    return index + bits / Byte.SIZE;
+                }
+            }
+        }
+        for (; index < length; index++) {
+            if (left.get(leftOffset + index) != right.get(rightOffset + index)) {
+                return index;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,159 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks compactions keeping every level but 0 a sorted run of tables with disjoint key ranges.
+ * Level 0 is merged into level 1 once it holds too many tables, a level exceeding its size target
+ * pushes one table at a time into the next level, round robin over the key space.
+ * The level furthest beyond its limit goes first, so a busy level 0 does not starve deeper ones.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    static final int MAX_LEVEL = 7;
+
+    private final int levelZeroTables;
+    private final long levelBaseSize;
+    private final int levelSizeRatio;
+    private final ByteBuffer[] cursors = new ByteBuffer[MAX_LEVEL + 1];
+
+    LeveledCompaction(@NotNull final Config config) {
+        this.levelZeroTables = config.getCompactionThreshold();
+        this.levelBaseSize = config.getLevelBaseSize();
+        this.levelSizeRatio = config.getLevelSizeRatio();
+    }
+
+    @Override
+    public boolean isNeeded(@NotNull final TableSet tables) {
+        for (int i = 0; i < Math.min(tables.depth(), MAX_LEVEL); i++) {
+            if (score(tables, i) >= 1.0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final TableSet tables) {
+        int level = -1;
+        double score = 0.0;
+        for (int i = 0; i < Math.min(tables.depth(), MAX_LEVEL); i++) {
+            final double levelScore = score(tables, i);
+            if (levelScore >= 1.0 && levelScore > score) {
+                score = levelScore;
+                level = i;
+            }
+        }
+        if (level < 0) {
+            return null;
+        }
+        if (level == 0) {
+            return merge(tables, tables.level(0), 1);
+        }
+
+        final SSTable next = next(tables.level(level), cursors[level]);
+        cursors[level] = next.getMaxKey();
+        final List<SSTable> upper = new ArrayList<>(1);
+        upper.add(next);
+        return merge(tables, upper, level + 1);
+    }
+
+    /**
+     * Merges all tables into a single sorted run at the level able to hold it.
+     */
+    @Nullable
+    @Override
+    public Compaction full(@NotNull final TableSet tables) {
+        if (tables.ssTables.isEmpty()) {
+            return null;
+        }
+        final long size = size(tables.ssTables.values());
+        int level = Math.max(1, tables.depth() - 1);
+        while (level < MAX_LEVEL && target(level) < size) {
+            level++;
+        }
+        return new Compaction(new ArrayList<>(tables.ssTables.values()), level, true);
+    }
+
+    private static Compaction merge(
+            @NotNull final TableSet tables,
+            @NotNull final List<SSTable> upper,
+            final int level) {
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final SSTable sst : upper) {
+            from = from == null || Keys.compare(sst.getMinKey(), from) < 0 ? sst.getMinKey() : from;
+            to = to == null || Keys.compare(sst.getMaxKey(), to) > 0 ? sst.getMaxKey() : to;
+        }
+        assert from != null && to != null;
+
+        final List<SSTable> inputs = new ArrayList<>(upper);
+        for (final SSTable sst : tables.level(level)) {
+            if (sst.overlaps(from, to)) {
+                inputs.add(sst);
+                from = Keys.compare(sst.getMinKey(), from) < 0 ? sst.getMinKey() : from;
+                to = Keys.compare(sst.getMaxKey(), to) > 0 ? sst.getMaxKey() : to;
+            }
+        }
+
+        // Tombstones may only go once there is nothing left below for them to shadow
+        boolean bottom = true;
+        for (int i = level + 1; i < tables.depth() && bottom; i++) {
+            for (final SSTable sst : tables.level(i)) {
+                if (sst.overlaps(from, to)) {
+                    bottom = false;
+                    break;
+                }
+            }
+        }
+        return new Compaction(inputs, level, bottom);
+    }
+
+    private static SSTable next(
+            @NotNull final List<SSTable> level,
+            @Nullable final ByteBuffer cursor) {
+        if (cursor != null) {
+            for (final SSTable sst : level) {
+                if (Keys.compare(sst.getMinKey(), cursor) > 0) {
+                    return sst;
+                }
+            }
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Level 0 is scored by number of tables, so merging it does not depend on sizes of flushes.
+     * Deeper levels need compaction once they outgrow their target.
+     */
+    private double score(
+            @NotNull final TableSet tables,
+            final int level) {
+        if (level == 0) {
+            return (double) tables.level(0).size() / levelZeroTables;
+        }
+        final long size = size(tables.level(level));
+        return size > target(level) ? (double) size / target(level) : 0.0;
+    }
+
+    private long target(final int level) {
+        long target = levelBaseSize;
+        for (int i = 1; i < level; i++) {
+            target *= levelSizeRatio;
+        }
+        return target;
+    }
+
+    private static long size(@NotNull final Iterable<SSTable> tables) {
+        long size = 0;
+        for (final SSTable sst : tables) {
+            size += sst.getSize();
+        }
+        return size;
+    }
+}
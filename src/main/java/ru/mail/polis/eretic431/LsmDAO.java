@@ -2,30 +2,115 @@ package ru.mail.polis.eretic431;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
-import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.SortedMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class LsmDAO implements DAO {
-    private final SortedMap<Integer, SSTable> ssTables;
-    private MemoryTable memTable;
+    private static final Logger log = LoggerFactory.getLogger(LsmDAO.class);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Varint row header and bloom filter bits of a row in SSTable
+    private static final long ROW_OVERHEAD = 8;
+    // Memory tables smaller than this share of the budget are not flushed to fit it
+    private static final int MIN_FLUSH_SHARE = 16;
+    // Failed flushes are retried after a delay doubled from the first one up to the last one
+    private static final long MIN_FLUSH_RETRY_MILLIS = 100;
+    private static final long MAX_FLUSH_RETRY_MILLIS = 10_000;
+    // Writes shrink the block cache once memory left for it drops by this share of the budget
+    private static final int CACHE_LIMIT_SHARE = 64;
+    // Buffers of the flusher and compactions
+    private static final long WRITE_BUFFERS_BYTES = 2L * SSTable.WRITE_BUFFER_BYTES;
+    // Upper levels are newer, tables of level 0 are ordered by flushes
+    private static final Comparator<SSTable> NEWEST_FIRST =
+            Comparator.comparingInt(SSTable::getLevel).thenComparing(SSTable::getOrder, Comparator.reverseOrder());
+
     private final File storage;
-    private int generation;
+    private final Config config;
     private final long flushThreshold;
+    private final long memoryBudget;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock compactionLock = new ReentrantLock();
+    private final Lock manifestLock = new ReentrantLock();
+    private final AtomicReference<TableSet> tables;
+    private final AtomicInteger nextGeneration;
+    private final WriteAheadLog wal;
+    private final boolean syncFiles;
+    private final Set<Integer> obsolete = ConcurrentHashMap.newKeySet();
+    // Numbers writes to memory tables in log order, so views skip versions written after them
+    private final AtomicLong sequence = new AtomicLong();
+    private final Lock snapshotLock = new ReentrantLock();
+    // Open views and tables replaced by compactions which some of them still read, guarded by the snapshot lock
+    private final Set<View> views = new HashSet<>();
+    private final List<SSTable> retained = new ArrayList<>();
+    @Nullable
+    private final BlockCache blockCache;
+    private final Semaphore pendingFlushes;
+    private final ExecutorService flusher;
+    private final CompactionStrategy compaction;
+    private final long targetTableSize;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    @Nullable
+    private final ScheduledExecutorService scrubber;
+    // Generation of the table checked by the scrubber last
+    private int scrubbed = -1;
+    // Tables are written through these, the flusher owns the first one and compactions under the compaction lock
+    // the second one, both are dropped on close
+    private ByteBuffer flushBuffer = ByteBuffer.allocateDirect(SSTable.WRITE_BUFFER_BYTES);
+    private ByteBuffer compactionBuffer = ByteBuffer.allocateDirect(SSTable.WRITE_BUFFER_BYTES);
+    // Heap of indexes of the published tables
+    private volatile long indexMemory;
+    // Memory left for the block cache when it was limited last
+    private volatile long cacheLeft;
+    private final CountDownLatch closing = new CountDownLatch(1);
+    private volatile boolean closed;
+    // The last flush failure, writes are refused until a flush succeeds
+    @Nullable
+    private volatile IOException flushFailure;
 
     /**
      * Creates persistent lsm key-value database instance.
@@ -35,103 +120,987 @@ public class LsmDAO implements DAO {
      * @throws IOException when {@link SSTable} creating goes wrong
      */
     public LsmDAO(final File storage, final long flushThreshold) throws IOException {
+        this(storage, Config.builder().flushThreshold(flushThreshold).build());
+    }
+
+    /**
+     * Creates persistent lsm key-value database instance.
+     *
+     * @param storage where files flushed to
+     * @param config  of the instance
+     * @throws IOException when {@link SSTable} creating goes wrong
+     */
+    public LsmDAO(final File storage, @NotNull final Config config) throws IOException {
         if (storage == null) {
             throw new IllegalArgumentException("Storage must not be null");
         }
         this.storage = storage;
-        this.flushThreshold = flushThreshold;
-        this.generation = 0;
-        this.memTable = new MemoryTable();
-        this.ssTables = new TreeMap<>(Comparator.reverseOrder());
+        this.config = config;
+        this.flushThreshold = config.getFlushThreshold();
+        this.memoryBudget = config.getMemoryBudget();
+        this.syncFiles = config.getDurability().syncsFiles();
+        this.blockCache = config.getBlockCacheSize() > 0 ? new BlockCache(config.getBlockCacheSize()) : null;
+        this.pendingFlushes = new Semaphore(config.getMaxPendingFlushes());
+        this.flusher = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "lsm-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compaction = config.getCompactionStyle().create(config);
+        this.targetTableSize = config.getTargetTableSize();
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "lsm-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
 
+        final Manifest manifest = Manifest.read(storage);
+        final List<SSTable> ssTables = new ArrayList<>();
+        final Set<Integer> loaded = new HashSet<>();
+        int generation = -1;
         try (Stream<Path> walker = Files.walk(storage.toPath(), 1)) {
-            final List<File> files = walker.filter(path -> {
-                final String fileName = path.getFileName().toString();
-                return fileName.endsWith(SSTable.DAT)
-                        && fileName.substring(0, fileName.length() - SSTable.DAT.length()).matches("^[0-9]+$");
-            }).map(Path::toFile).collect(Collectors.toList());
+            final List<File> files = walker
+                    .filter(path -> isGeneration(path.getFileName().toString(), SSTable.DAT))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
 
             for (final File file : files) {
-                final SSTable sst = new SSTable(file);
-                ssTables.put(sst.getGeneration(), sst);
-
-                if (sst.getGeneration() > generation) {
-                    generation = sst.getGeneration();
+                final SSTable sst = new SSTable(file, blockCache, config.getVerification());
+                generation = Math.max(generation, sst.getGeneration());
+                if (manifest == null || manifest.live.contains(sst.getGeneration())) {
+                    ssTables.add(sst);
+                } else if (sst.getLevel() == 0
+                        && sst.getOrder() == sst.getGeneration()
+                        && !manifest.obsolete.contains(sst.getGeneration())) {
+                    // Flushed after the last manifest update
+                    ssTables.add(sst);
+                } else {
+                    // Replaced by a finished compaction or written by an unfinished one
+                    Files.delete(file.toPath());
+                    continue;
                 }
+                loaded.add(sst.getGeneration());
             }
         }
 
-        if (!ssTables.isEmpty()) {
-            generation++;
+        // Memory tables lost by a crash are flushed under their own generations, so they keep their place
+        final NavigableMap<Integer, File> segments = new TreeMap<>();
+        try (Stream<Path> walker = Files.walk(storage.toPath(), 1)) {
+            walker.filter(path -> isGeneration(path.getFileName().toString(), WriteAheadLog.LOG))
+                    .map(Path::toFile)
+                    .forEach(file -> segments.put(generationOf(file.getName(), WriteAheadLog.LOG), file));
+        }
+        final int replay = manifest == null ? 0 : manifest.replay;
+        for (final Map.Entry<Integer, File> segment : segments.entrySet()) {
+            final int memGeneration = segment.getKey();
+            generation = Math.max(generation, memGeneration);
+            if (memGeneration < replay || loaded.contains(memGeneration)) {
+                continue;
+            }
+            final MemoryTable memTable = WriteAheadLog.replay(segment.getValue());
+            final SSTable sst = SSTable.flush(
+                    memTable.iterator(EMPTY),
+                    memTable.getRowCount(),
+                    storage,
+                    memGeneration,
+                    0,
+                    memGeneration,
+                    config,
+                    blockCache,
+                    flushBuffer);
+            if (sst != null) {
+                ssTables.add(sst);
+            }
+        }
+
+        this.nextGeneration = new AtomicInteger(generation + 1);
+        final int memGeneration = nextGeneration.getAndIncrement();
+        this.wal = new WriteAheadLog(storage, memGeneration, config, sequence);
+        this.tables = new AtomicReference<>(TableSet.of(ssTables, memGeneration));
+
+        if (config.getScrubInterval() > 0) {
+            this.scrubber = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "lsm-scrubber");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            scrubber.scheduleWithFixedDelay(
+                    this::scrub, config.getScrubInterval(), config.getScrubInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            this.scrubber = null;
+        }
+        publish(UnaryOperator.identity());
+        for (final File segment : segments.values()) {
+            Files.delete(segment.toPath());
         }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        final List<Iterator<Row>> iterators = new ArrayList<>(ssTables.size() + 1);
-        iterators.add(memTable.iterator(from));
-        for (final Table sst : ssTables.values()) {
+        return iterator(tables.get(), from, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        return get(tables.get(), key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes read view pinned to the current table set and the last applied write.
+     * Writes in progress hold the read lock, so the view waits for them and sees every write numbered up to it.
+     * Tables replaced by compactions are kept on disk while a view needs them and removed by the last one closed.
+     * Views left open when the storage is closed are still readable, their tables are removed on the next start.
+     *
+     * @return view of the current state
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        lock.writeLock().lock();
+        try {
+            snapshotLock.lock();
+            try {
+                final View view = new View(tables.get(), sequence.get());
+                views.add(view);
+                return view;
+            } finally {
+                snapshotLock.unlock();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Iterates over the table set as of the sequence number.
+     *
+     * @param snapshot is a table set to read
+     * @param from     is a key to start from
+     * @param sequence is the last write of memory tables to see
+     * @return iterator over live records
+     */
+    @NotNull
+    private static Iterator<Record> iterator(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer from,
+            final long sequence) {
+        final List<Iterator<Row>> iterators =
+                new ArrayList<>(snapshot.flushing.size() + snapshot.ssTables.size() + 1);
+        iterators.add(snapshot.memTable.iterator(from, sequence));
+        for (final MemoryTable frozen : snapshot.flushing.values()) {
+            iterators.add(frozen.iterator(from, sequence));
+        }
+        for (final Table sst : snapshot.level(0)) {
             iterators.add(sst.iterator(from));
         }
-        final Iterator<Row> merged = Iterators.mergeSorted(
-                iterators, Row.COMPARATOR);
-        final Iterator<Row> collapsed = Iters.collapseEquals(merged, Row::getKey);
-        final Iterator<Row> filtered = Iterators.filter(collapsed, e -> {
-            assert e != null;
-            return !e.getValue().isTombstone();
-        });
+        for (int i = 1; i < snapshot.depth(); i++) {
+            final List<SSTable> level = snapshot.level(i);
+            final Iterator<SSTable> tail = level.subList(find(level, from), level.size()).iterator();
+            iterators.add(Iterators.concat(Iterators.transform(tail, sst -> sst.iterator(from))));
+        }
+        return merge(iterators);
+    }
+
+    /**
+     * Looks key up in the table set as of the sequence number.
+     *
+     * @param snapshot is a table set to look in
+     * @param key      is a key to look for
+     * @param sequence is the last write of memory tables to see
+     * @return value of {@param key}
+     * @throws NoSuchElementException if there is no live record of {@param key}
+     */
+    @NotNull
+    private static ByteBuffer get(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer key,
+            final long sequence) {
+        Value value = snapshot.memTable.get(key, sequence);
+        if (value == null) {
+            for (final MemoryTable frozen : snapshot.flushing.values()) {
+                value = frozen.get(key, sequence);
+                if (value != null) {
+                    break;
+                }
+            }
+        }
+        if (value == null) {
+            value = get(snapshot, key);
+        }
+
+        if (value == null || value.isTombstone()) {
+            throw new NoSuchElementException("Not found");
+        }
+        final ByteBuffer data = value.getData();
+        assert data != null;
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Looks keys up in sorted order: the memory tables first, then every table on disk in a single forward pass.
+     *
+     * @param keys are keys to look for, duplicates are allowed
+     * @return values in the order of {@param keys}, null for keys with no record
+     */
+    @NotNull
+    @Override
+    public List<ByteBuffer> getAll(@NotNull final Collection<ByteBuffer> keys) {
+        final ByteBuffer[] requested = keys.toArray(new ByteBuffer[0]);
+        final Integer[] order = new Integer[requested.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (left, right) -> Keys.compare(requested[left], requested[right]));
+
+        // Duplicates are looked up once, slots map requested keys to distinct ones
+        final int[] slots = new int[requested.length];
+        final ByteBuffer[] sorted = new ByteBuffer[requested.length];
+        int distinct = 0;
+        for (final int index : order) {
+            if (distinct == 0 || Keys.compare(sorted[distinct - 1], requested[index]) != 0) {
+                sorted[distinct++] = requested[index];
+            }
+            slots[index] = distinct - 1;
+        }
+        final ByteBuffer[] unique = Arrays.copyOf(sorted, distinct);
+
+        final TableSet snapshot = tables.get();
+        final Value[] values = new Value[distinct];
+        for (int i = 0; i < distinct; i++) {
+            values[i] = snapshot.memTable.get(unique[i]);
+            if (values[i] != null) {
+                continue;
+            }
+            for (final Table frozen : snapshot.flushing.values()) {
+                values[i] = frozen.get(unique[i]);
+                if (values[i] != null) {
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < snapshot.depth(); i++) {
+            for (final SSTable sst : snapshot.level(i)) {
+                sst.get(unique, values);
+            }
+        }
+
+        final List<ByteBuffer> result = new ArrayList<>(requested.length);
+        for (final int slot : slots) {
+            final Value value = values[slot];
+            final ByteBuffer data = value == null ? null : value.getData();
+            result.add(data == null ? null : data.asReadOnlyBuffer());
+        }
+        return result;
+    }
+
+    /**
+     * Looks key up in tables on disk: every table of level 0, then at most one table of each deeper level.
+     *
+     * @param snapshot is a table set to look in
+     * @param key      is a key to look for
+     * @return the newest value, null if there is none
+     */
+    @Nullable
+    private static Value get(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer key) {
+        for (final SSTable sst : snapshot.level(0)) {
+            if (sst.mightContain(key)) {
+                final Value value = sst.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        for (int i = 1; i < snapshot.depth(); i++) {
+            final List<SSTable> level = snapshot.level(i);
+            final int index = find(level, key);
+            if (index == level.size()) {
+                continue;
+            }
+            final SSTable sst = level.get(index);
+            if (Keys.compare(sst.getMinKey(), key) <= 0 && sst.mightContain(key)) {
+                final Value value = sst.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
 
-        return Iterators.transform(filtered, element -> {
-            assert element != null;
-            assert element.getValue().getData() != null;
-            return Record.of(element.getKey(), element.getValue().getData());
+    /**
+     * Finds the first table of a sorted run which may hold keys not less than the given one.
+     *
+     * @param level is a sorted run of tables
+     * @param key   is a key to look for
+     * @return index of the table, size of {@param level} if there is none
+     */
+    private static int find(
+            @NotNull final List<SSTable> level,
+            @NotNull final ByteBuffer key) {
+        int low = 0;
+        int high = level.size() - 1;
+        while (low <= high) {
+            final int pivot = (low + high) >>> 1;
+            if (Keys.compare(level.get(pivot).getMaxKey(), key) < 0) {
+                low = pivot + 1;
+            } else {
+                high = pivot - 1;
+            }
+        }
+        return low;
+    }
+
+    private static Iterator<Record> merge(@NotNull final List<Iterator<Row>> iterators) {
+        return Iterators.transform(new MergeIterator(iterators, true), row -> {
+            assert row != null;
+            assert row.getValue().getData() != null;
+            return Record.of(row.getKey(), row.getValue().getData());
         });
     }
 
+    /**
+     * Returns block cache lookups of every table on disk, so the cache can be sized by hit rates.
+     *
+     * @return statistics by table generation
+     */
+    @NotNull
+    public Map<Integer, CacheStats> getCacheStats() {
+        final Map<Integer, CacheStats> stats = new TreeMap<>();
+        for (final SSTable sst : tables.get().ssTables.values()) {
+            stats.put(sst.getGeneration(), sst.getCacheStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns memory taken by memory tables, the block cache and indexes of tables.
+     *
+     * @return current memory usage
+     */
+    @NotNull
+    public MemoryUsage getMemoryUsage() {
+        final TableSet current = tables.get();
+        return new MemoryUsage(
+                memTableMemory(current),
+                blockCache == null ? 0 : blockCache.size(),
+                indexMemory,
+                memoryBudget);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.getSize() > flushThreshold) {
-            flush();
+        checkFlushes();
+        final boolean full;
+        lock.readLock().lock();
+        try {
+            final Value record = Value.of(value);
+            final long number = wal.append(key, record);
+            final TableSet current = tables.get();
+            current.memTable.upsert(key, record, number);
+            full = isFull(current, flushThreshold);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (full) {
+            freeze(flushThreshold);
         }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        if (memTable.getSize() > flushThreshold) {
-            flush();
+        checkFlushes();
+        final boolean full;
+        lock.readLock().lock();
+        try {
+            final Value record = Value.tombstone();
+            final long number = wal.append(key, record);
+            final TableSet current = tables.get();
+            current.memTable.upsert(key, record, number);
+            full = isFull(current, flushThreshold);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (full) {
+            freeze(flushThreshold);
         }
     }
 
+    /**
+     * Writes the batch as a single log record to a single memory table, checking the flush threshold once.
+     * After a crash either every operation of the batch is recovered or none of them.
+     * The operations share a timestamp, the last one wins among operations of the same key.
+     *
+     * @param batch is operations to write
+     * @throws IOException when writing the log goes wrong or flushes fail, nothing of the batch is applied then
+     */
     @Override
-    public void compact() throws IOException {
-        final List<Iterator<Row>> iterators = new ArrayList<>(ssTables.size());
-        for (final Table sst : ssTables.values()) {
-            iterators.add(sst.iterator(ByteBuffer.allocate(0)));
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
         }
-        final Iterator<Row> merged = Iterators.mergeSorted(
-                iterators, Row.COMPARATOR);
-        final Iterator<Row> collapsed = Iters.collapseEquals(merged, Row::getKey);
+        checkFlushes();
+        final boolean full;
+        lock.readLock().lock();
+        try {
+            // Taken under the lock like timestamps of single writes, so a write to a frozen table is never newer
+            final long timestamp = System.currentTimeMillis();
+            final List<Row> rows = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                final ByteBuffer value = batch.getValue(i);
+                rows.add(Row.of(batch.getKey(i), value == null
+                        ? Value.tombstone(timestamp)
+                        : Value.of(timestamp, value)));
+            }
 
-        ssTables.put(generation, SSTable.flush(collapsed, storage, generation));
-        for (int i = ssTables.lastKey(); i < generation; i++) {
-            ssTables.remove(i).file.delete();
+            // Views see either every row of the batch or none of them
+            final long number = wal.append(rows);
+            final TableSet current = tables.get();
+            for (final Row row : rows) {
+                current.memTable.upsert(row.key(), row.getValue(), number);
+            }
+            full = isFull(current, flushThreshold);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (full) {
+            freeze(flushThreshold);
+        }
+    }
+
+    @Override
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            // Only tables on disk are captured, memory tables must not be kept alive by a long compaction
+            final Compaction full = compaction.full(tables.get());
+            if (full != null) {
+                compact(full);
+            }
+        } finally {
+            compactionLock.unlock();
         }
-        generation++;
     }
 
     @Override
     public void close() throws IOException {
-        SSTable.flush(memTable.iterator(ByteBuffer.allocate(0)), storage, generation);
+        closed = true;
+        closing.countDown();
+        if (scrubber != null) {
+            shutdown(scrubber);
+        }
+        freeze(-1);
+        shutdown(flusher);
+
+        // Compaction scheduled but not started yet is skipped, the running one is awaited
+        shutdown(compactor);
+
+        // Retry flushes which have failed in background
+        for (final Map.Entry<Integer, MemoryTable> frozen : tables.get().flushing.descendingMap().entrySet()) {
+            flush(frozen.getKey(), frozen.getValue());
+        }
+
+        wal.close();
+        final TableSet current = tables.get();
+        if (current.memTable.isEmpty()) {
+            WriteAheadLog.delete(storage, current.generation);
+        }
+
+        flushBuffer = null;
+        compactionLock.lock();
+        try {
+            compactionBuffer = null;
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Refuses writes while flushes fail, so memory tables which can not be flushed do not pile up.
+     *
+     * @throws IOException the last flush failure
+     */
+    private void checkFlushes() throws IOException {
+        final IOException failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Writes are refused until a failed flush succeeds", failure);
+        }
+    }
+
+    /**
+     * Checks whether memory table has to be flushed.
+     * Replaced values and headers of rows take memory too, which is bounded by twice the threshold.
+     *
+     * @param current   table set with the memory table to check
+     * @param threshold keys and values of the table have to exceed
+     * @return true if the table is over the threshold or does not fit the memory budget
+     */
+    private boolean isFull(
+            @NotNull final TableSet current,
+            final long threshold) {
+        final MemoryTable memTable = current.memTable;
+        return memTable.getSize() > threshold
+                || memTable.getMemoryUsage() / 2 > threshold
+                || overBudget(current);
+    }
+
+    /**
+     * Shrinks the block cache to memory left by memory tables and indexes once it drops by a step since the last
+     * limit, so writes do not touch the cache every time, and checks whether they alone exceed the memory budget.
+     * Freezing the memory table waits for flushes in progress, so writers stall until they free memory.
+     * A memory table smaller than a fair share of the budget is not flushed, so indexes taking the budget
+     * do not cause tiny flushes.
+     *
+     * @param current table set to check
+     * @return true if the memory table has to be flushed to fit the budget
+     */
+    private boolean overBudget(@NotNull final TableSet current) {
+        if (memoryBudget == Config.DEFAULT_MEMORY_BUDGET) {
+            return false;
+        }
+        final long left = cacheLeft(memTableMemory(current));
+        if (cacheLeft - left >= memoryBudget / CACHE_LIMIT_SHARE) {
+            fitCache(left);
+        }
+        return left < 0 && current.memTable.getMemoryUsage() >= memoryBudget / MIN_FLUSH_SHARE;
     }
 
-    private void flush() throws IOException {
-        ssTables.put(
+    /**
+     * Returns the memory budget left by memory tables, indexes and write buffers.
+     *
+     * @param memTables is memory taken by memory tables
+     * @return memory left, negative if memory tables and indexes exceed the budget
+     */
+    private long cacheLeft(final long memTables) {
+        return memoryBudget - memTables - indexMemory - WRITE_BUFFERS_BYTES;
+    }
+
+    /**
+     * Limits the block cache to the memory left.
+     *
+     * @param left is memory left by memory tables, indexes and write buffers
+     */
+    private void fitCache(final long left) {
+        cacheLeft = left;
+        if (blockCache != null && memoryBudget != Config.DEFAULT_MEMORY_BUDGET) {
+            blockCache.limit(Math.max(left, 0));
+        }
+    }
+
+    private static long memTableMemory(@NotNull final TableSet current) {
+        long memory = current.memTable.getMemoryUsage();
+        for (final MemoryTable frozen : current.flushing.values()) {
+            memory += frozen.getMemoryUsage();
+        }
+        return memory;
+    }
+
+    /**
+     * Freezes memory table and hands it to the flusher unless another writer has already done it.
+     * Blocks while too many frozen memory tables wait for flush. Writers stop waiting once a flush fails,
+     * the memory table is left to be frozen after flushes recover.
+     *
+     * @param threshold memory table size has to exceed
+     */
+    private void freeze(final long threshold) throws IOException {
+        try {
+            while (!pendingFlushes.tryAcquire(MIN_FLUSH_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!closed && flushFailure != null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        }
+
+        final MemoryTable memTable;
+        final int generation;
+        final FileChannel segment;
+        lock.writeLock().lock();
+        try {
+            final TableSet current = tables.get();
+            memTable = current.memTable;
+            generation = current.generation;
+            if (memTable.isEmpty() || !isFull(current, threshold)) {
+                pendingFlushes.release();
+                return;
+            }
+            final int next = nextGeneration.getAndIncrement();
+            try {
+                segment = wal.rotate(next);
+            } catch (IOException e) {
+                pendingFlushes.release();
+                throw e;
+            }
+            tables.updateAndGet(t -> t.frozen(next));
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        flusher.execute(() -> {
+            try {
+                // The segment is forced here, not under the lock, so writers do not stall on fsync
+                wal.seal(segment);
+            } catch (IOException e) {
+                log.error("Unable to sync log of generation {}", generation, e);
+            }
+            try {
+                flushUntilDone(generation, memTable);
+            } finally {
+                pendingFlushes.release();
+            }
+        });
+    }
+
+    /**
+     * Flushes frozen memory table, retrying with growing delays until it succeeds or the storage is closed.
+     * Writes are refused meanwhile, a flush left when the storage is closed is retried by {@link #close()}.
+     *
+     * @param generation of the frozen memory table
+     * @param memTable   is a frozen memory table
+     */
+    private void flushUntilDone(
+            final int generation,
+            @NotNull final MemoryTable memTable) {
+        long delay = MIN_FLUSH_RETRY_MILLIS;
+        while (true) {
+            try {
+                flush(generation, memTable);
+                flushFailure = null;
+                return;
+            } catch (IOException e) {
+                flushFailure = e;
+                log.error("Unable to flush generation {}, retrying in {} ms", generation, delay, e);
+            }
+            try {
+                if (closing.await(delay, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_FLUSH_RETRY_MILLIS);
+        }
+    }
+
+    private void flush(
+            final int generation,
+            @NotNull final MemoryTable memTable) throws IOException {
+        final SSTable sst = SSTable.flush(
+                memTable.iterator(EMPTY),
+                memTable.getRowCount(),
+                storage,
                 generation,
-                SSTable.flush(memTable.iterator(ByteBuffer.allocate(0)), storage, generation));
-        memTable = new MemoryTable();
-        generation++;
+                0,
+                generation,
+                config,
+                blockCache,
+                flushBuffer);
+        final TableSet current = publish(t -> t.flushed(generation, sst));
+        WriteAheadLog.delete(storage, generation);
+        if (compaction.isNeeded(current)) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Replaces tables of the compaction by the result of their merge.
+     * Must be called under the compaction lock.
+     *
+     * @param task is a compaction to run
+     */
+    private void compact(@NotNull final Compaction task) throws IOException {
+        final List<SSTable> result = task.merge ? merge(task) : Collections.emptyList();
+
+        final Set<Integer> replaced = new HashSet<>();
+        for (final SSTable sst : task.inputs) {
+            replaced.add(sst.getGeneration());
+        }
+        publish(t -> {
+            obsolete.addAll(replaced);
+            return t.compacted(task.inputs, result);
+        });
+        final List<SSTable> released = new ArrayList<>(task.inputs.size());
+        snapshotLock.lock();
+        try {
+            for (final SSTable sst : task.inputs) {
+                if (pinned(sst)) {
+                    retained.add(sst);
+                } else {
+                    released.add(sst);
+                }
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+        delete(released);
+    }
+
+    /**
+     * Checks whether a view reads the table, must be called under the snapshot lock.
+     *
+     * @param sst is a table replaced by a compaction
+     * @return true if the table has to be kept
+     */
+    private boolean pinned(@NotNull final SSTable sst) {
+        for (final View view : views) {
+            if (view.tables.ssTables.get(sst.getGeneration()) == sst) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes files of tables replaced by compactions, they stay obsolete in the manifest if deletion fails.
+     *
+     * @param released are tables read by no one
+     */
+    private void delete(@NotNull final List<SSTable> released) {
+        for (final SSTable sst : released) {
+            try {
+                Files.deleteIfExists(sst.file.toPath());
+                obsolete.remove(sst.getGeneration());
+                if (blockCache != null) {
+                    blockCache.invalidate(sst.getGeneration());
+                }
+            } catch (IOException e) {
+                log.warn("Unable to delete compacted {}", sst.file, e);
+            }
+        }
+    }
+
+    /**
+     * Merges tables of the compaction into tables of the target level.
+     * Level 0 gets a single table taking the place of the newest input, deeper levels get tables of target size.
+     *
+     * @param task is a compaction to run
+     * @return written tables, empty if nothing survived
+     */
+    private List<SSTable> merge(@NotNull final Compaction task) throws IOException {
+        if (compactionBuffer == null) {
+            throw new IOException("Storage is closed");
+        }
+        // Versions with the same timestamp are resolved by the order of sources, so the newest tables go first
+        final List<SSTable> inputs = new ArrayList<>(task.inputs);
+        inputs.sort(NEWEST_FIRST);
+        final List<Iterator<Row>> iterators = new ArrayList<>(inputs.size());
+        long rows = 0;
+        long bytes = 0;
+        int order = 0;
+        for (final SSTable sst : inputs) {
+            iterators.add(sst.reader().iterator(EMPTY));
+            rows += sst.getRowCount();
+            bytes += sst.getSize();
+            order = Math.max(order, sst.getOrder());
+        }
+        final Iterator<Row> collapsed = new MergeIterator(iterators, task.dropTombstones);
+
+        final long tableSize = task.level == 0 ? Long.MAX_VALUE : targetTableSize;
+        // Rows per table are estimated by keys and values, without headers and index entries
+        final long payload = Math.max(rows, bytes - rows * ROW_OVERHEAD);
+        final long expectedRows = task.level == 0
+                ? rows
+                : Math.min(rows, rows * tableSize / payload + rows / 10 + 1);
+        final List<SSTable> result = new ArrayList<>();
+        while (collapsed.hasNext()) {
+            result.add(SSTable.flush(
+                    limit(collapsed, tableSize),
+                    expectedRows,
+                    storage,
+                    nextGeneration.getAndIncrement(),
+                    task.level,
+                    order,
+                    config,
+                    blockCache,
+                    compactionBuffer));
+        }
+        return result;
+    }
+
+    /**
+     * Limits rows written into one table by compaction.
+     *
+     * @param rows  is a source of rows shared by consecutive tables
+     * @param bytes of keys and values after which the table is finished
+     * @return iterator over the next part of {@param rows}
+     */
+    private static Iterator<Row> limit(
+            @NotNull final Iterator<Row> rows,
+            final long bytes) {
+        return new Iterator<>() {
+            private long written;
+
+            @Override
+            public boolean hasNext() {
+                return written < bytes && rows.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                final Row row = rows.next();
+                final ByteBuffer data = row.getValue().getData();
+                written += row.getKey().remaining() + (data == null ? 0 : data.remaining());
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Applies change to the table set and records tables it consists of in the manifest.
+     *
+     * @param change of the table set
+     * @return the changed table set
+     */
+    private TableSet publish(@NotNull final UnaryOperator<TableSet> change) throws IOException {
+        manifestLock.lock();
+        try {
+            final TableSet current = tables.updateAndGet(change);
+            Manifest.write(storage, current.ssTables.keySet(), obsolete, current.unflushed(), syncFiles);
+            long memory = 0;
+            for (final SSTable sst : current.ssTables.values()) {
+                memory += sst.getIndexMemory();
+            }
+            indexMemory = memory;
+            // Flushes and compactions are where memory is freed, so the cache grows back here
+            fitCache(cacheLeft(memTableMemory(current)));
+            return current;
+        } finally {
+            manifestLock.unlock();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactor.isShutdown() || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(() -> {
+                compactionScheduled.set(false);
+                compactionLock.lock();
+                try {
+                    Compaction task;
+                    while (!closed && (task = compaction.pick(tables.get())) != null) {
+                        compact(task);
+                    }
+                } catch (IOException e) {
+                    log.error("Background compaction failed", e);
+                } finally {
+                    compactionLock.unlock();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compactionScheduled.set(false);
+        }
+    }
+
+    /**
+     * Checks every block of the table next to the one checked last, so all tables are checked in turn.
+     * Tables with every block verified already are skipped, so the scrubber goes for cold data.
+     * Failures are logged, an exception escaping the task would cancel the following runs.
+     */
+    private void scrub() {
+        final NavigableMap<Integer, SSTable> ssTables = tables.get().ssTables;
+        Map.Entry<Integer, SSTable> next = ssTables.higherEntry(scrubbed);
+        for (int i = 0; i < ssTables.size(); i++) {
+            if (next == null) {
+                next = ssTables.firstEntry();
+            }
+            if (!next.getValue().isVerified()) {
+                break;
+            }
+            next = ssTables.higherEntry(next.getKey());
+        }
+        if (next == null || next.getValue().isVerified()) {
+            return;
+        }
+        scrubbed = next.getKey();
+        try {
+            next.getValue().verify();
+        } catch (IllegalStateException e) {
+            log.error("Damaged table {}", next.getValue().file, e);
+        } catch (RuntimeException e) {
+            log.error("Unable to scrub table {}", next.getValue().file, e);
+        }
+    }
+
+    private static boolean isGeneration(
+            @NotNull final String fileName,
+            @NotNull final String suffix) {
+        return fileName.endsWith(suffix)
+                && fileName.substring(0, fileName.length() - suffix.length()).matches("^[0-9]+$");
+    }
+
+    private static int generationOf(
+            @NotNull final String fileName,
+            @NotNull final String suffix) {
+        return Integer.parseInt(fileName.substring(0, fileName.length() - suffix.length()));
+    }
+
+    private static void shutdown(@NotNull final ExecutorService executor) throws IOException {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Background task has not finished in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background task");
+        }
+    }
+
+    /**
+     * Read view pinned to a table set and a sequence number of writes to its memory tables.
+     */
+    private final class View implements Snapshot {
+        private final TableSet tables;
+        private final long sequence;
+
+        View(
+                @NotNull final TableSet tables,
+                final long sequence) {
+            this.tables = tables;
+            this.sequence = sequence;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+            return LsmDAO.iterator(tables, from, sequence);
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+            return LsmDAO.get(tables, key, sequence);
+        }
+
+        @Override
+        public void close() {
+            final List<SSTable> released = new ArrayList<>();
+            snapshotLock.lock();
+            try {
+                if (!views.remove(this)) {
+                    return;
+                }
+                for (final Iterator<SSTable> it = retained.iterator(); it.hasNext(); ) {
+                    final SSTable sst = it.next();
+                    if (!pinned(sst)) {
+                        it.remove();
+                        released.add(sst);
+                    }
+                }
+            } finally {
+                snapshotLock.unlock();
+            }
+            delete(released);
+        }
     }
 }
@@ -0,0 +1,167 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LZ77 codec in the spirit of LZ4, needs no native libraries.
+ * Compressed data is a sequence of token (byte), literals, match offset (short) and match, where the token
+ * holds 4 bits of literals length and 4 bits of match length, 15 meaning more length bytes follow (255 each).
+ * The last sequence has literals only.
+ */
+final class LzCodec implements Codec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+    private static final int RUN_MASK = 15;
+    // Step grows with every miss since the last match, so incompressible data is skipped quickly
+    private static final int SKIP_SHIFT = 6;
+    private static final ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    @Override
+    public int maxCompressedLength(final int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public void compress(
+            @NotNull final ByteBuffer src,
+            @NotNull final ByteBuffer dst) {
+        final byte[] in = src.array();
+        final int end = src.arrayOffset() + src.limit();
+        final byte[] out = dst.array();
+        int op = dst.arrayOffset() + dst.position();
+
+        final int[] table = TABLE.get();
+        Arrays.fill(table, -1);
+        int anchor = src.arrayOffset() + src.position();
+        int ip = anchor;
+        while (ip <= end - MIN_MATCH) {
+            final int sequence = readInt(in, ip);
+            final int hash = sequence * -1640531535 >>> Integer.SIZE - HASH_BITS;
+            final int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(in, ref) != sequence) {
+                ip += 1 + (ip - anchor >>> SKIP_SHIFT);
+                continue;
+            }
+
+            int length = MIN_MATCH;
+            while (ip + length < end && in[ref + length] == in[ip + length]) {
+                length++;
+            }
+            op = writeLiterals(in, anchor, ip - anchor, length - MIN_MATCH, out, op);
+            out[op++] = (byte) (ip - ref >>> Byte.SIZE);
+            out[op++] = (byte) (ip - ref);
+            if (length - MIN_MATCH >= RUN_MASK) {
+                op = writeLength(length - MIN_MATCH - RUN_MASK, out, op);
+            }
+            ip += length;
+            anchor = ip;
+        }
+        op = writeLiterals(in, anchor, end - anchor, 0, out, op);
+        dst.position(op - dst.arrayOffset());
+    }
+
+    @Override
+    public void decompress(
+            @NotNull final ByteBuffer src,
+            @NotNull final ByteBuffer dst) {
+        final ByteBuffer in = src.duplicate();
+        final byte[] out = dst.array();
+        final int start = dst.arrayOffset() + dst.position();
+        final int end = dst.arrayOffset() + dst.limit();
+        int op = start;
+        try {
+            while (true) {
+                final int token = in.get() & 0xFF;
+                final int literals = readLength(token >>> 4, in);
+                if (literals > end - op) {
+                    throw new IllegalArgumentException("Literals overflow the block");
+                }
+                in.get(out, op, literals);
+                op += literals;
+                if (!in.hasRemaining()) {
+                    break;
+                }
+
+                final int offset = (in.get() & 0xFF) << Byte.SIZE | in.get() & 0xFF;
+                final int length = readLength(token & RUN_MASK, in) + MIN_MATCH;
+                if (offset == 0 || offset > op - start || length > end - op) {
+                    throw new IllegalArgumentException("Match is out of the block");
+                }
+                if (offset >= length) {
+                    System.arraycopy(out, op - offset, out, op, length);
+                } else {
+                    // Overlapping match repeats the last offset bytes
+                    for (int i = 0; i < length; i++) {
+                        out[op + i] = out[op - offset + i];
+                    }
+                }
+                op += length;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated compressed data", e);
+        }
+        if (op != end) {
+            throw new IllegalArgumentException("Compressed data is shorter than the block");
+        }
+        dst.position(op - dst.arrayOffset());
+    }
+
+    private static int writeLiterals(
+            final byte[] in,
+            final int from,
+            final int literals,
+            final int matchLength,
+            final byte[] out,
+            final int offset) {
+        int op = offset;
+        out[op++] = (byte) (Math.min(literals, RUN_MASK) << 4 | Math.min(matchLength, RUN_MASK));
+        if (literals >= RUN_MASK) {
+            op = writeLength(literals - RUN_MASK, out, op);
+        }
+        System.arraycopy(in, from, out, op, literals);
+        return op + literals;
+    }
+
+    private static int writeLength(
+            final int length,
+            final byte[] out,
+            final int offset) {
+        int op = offset;
+        int remaining = length;
+        while (remaining >= 0xFF) {
+            out[op++] = (byte) 0xFF;
+            remaining -= 0xFF;
+        }
+        out[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int readLength(
+            final int nibble,
+            @NotNull final ByteBuffer in) {
+        int length = nibble;
+        if (nibble == RUN_MASK) {
+            int next;
+            do {
+                next = in.get() & 0xFF;
+                length += next;
+            } while (next == 0xFF);
+        }
+        return length;
+    }
+
+    private static int readInt(
+            final byte[] in,
+            final int offset) {
+        return (in[offset] & 0xFF) << 24
+                | (in[offset + 1] & 0xFF) << 16
+                | (in[offset + 2] & 0xFF) << 8
+                | in[offset + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,136 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lists generations of live tables, so a compaction writing several tables takes effect atomically.
+ * Log segments of memory tables older than the replay generation are flushed already and must not be replayed.
+ * Tables replaced by a compaction are listed as obsolete until their files are deleted.
+ * Tables missing from the manifest are either flushed after its last update or unfinished compaction results,
+ * the level and the order stored in the table tell them apart.
+ */
+final class Manifest {
+    static final String NAME = "MANIFEST";
+    private static final String LIVE = "live";
+    private static final String OBSOLETE = "obsolete";
+    private static final String REPLAY = "replay";
+
+    @NotNull
+    final Set<Integer> live;
+    @NotNull
+    final Set<Integer> obsolete;
+    final int replay;
+
+    private Manifest(
+            @NotNull final Set<Integer> live,
+            @NotNull final Set<Integer> obsolete,
+            final int replay) {
+        this.live = live;
+        this.obsolete = obsolete;
+        this.replay = replay;
+    }
+
+    /**
+     * Reads manifest of the storage.
+     *
+     * @param storage where tables are kept
+     * @return null if the storage has no manifest yet
+     * @throws IOException when the manifest is damaged
+     */
+    @Nullable
+    static Manifest read(@NotNull final File storage) throws IOException {
+        final File file = new File(storage, NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        final Set<Integer> live = new HashSet<>();
+        final Set<Integer> obsolete = new HashSet<>();
+        int replay = 0;
+        for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] fields = line.split(" ");
+            if (fields.length != 2) {
+                throw new IOException("Malformed line of " + file + ": " + line);
+            }
+            final int generation;
+            try {
+                generation = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed line of " + file + ": " + line, e);
+            }
+            if (LIVE.equals(fields[0])) {
+                live.add(generation);
+            } else if (OBSOLETE.equals(fields[0])) {
+                obsolete.add(generation);
+            } else if (REPLAY.equals(fields[0])) {
+                replay = generation;
+            } else {
+                throw new IOException("Malformed line of " + file + ": " + line);
+            }
+        }
+        return new Manifest(live, obsolete, replay);
+    }
+
+    /**
+     * Atomically replaces manifest of the storage.
+     *
+     * @param storage  where tables are kept
+     * @param live     are generations of tables to read from
+     * @param obsolete are generations of tables to delete
+     * @param replay   is the oldest generation of memory tables which are not flushed yet
+     * @param sync     is true if the manifest is forced to disk before it takes effect
+     * @throws IOException when writing goes wrong
+     */
+    static void write(
+            @NotNull final File storage,
+            @NotNull final Collection<Integer> live,
+            @NotNull final Collection<Integer> obsolete,
+            final int replay,
+            final boolean sync) throws IOException {
+        final List<String> lines = new ArrayList<>(live.size() + obsolete.size() + 1);
+        lines.add(REPLAY + " " + replay);
+        for (final int generation : live) {
+            lines.add(LIVE + " " + generation);
+        }
+        for (final int generation : obsolete) {
+            lines.add(OBSOLETE + " " + generation);
+        }
+
+        final File tmp = new File(storage, NAME + SSTable.TMP);
+        try (FileChannel fc = FileChannel.open(
+                tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer content = StandardCharsets.UTF_8.encode(String.join("\n", lines) + "\n");
+            while (content.hasRemaining()) {
+                fc.write(content);
+            }
+            if (sync) {
+                fc.force(true);
+            }
+        }
+        Files.move(tmp.toPath(), new File(storage, NAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (sync) {
+            Durability.syncDirectory(storage);
+        }
+    }
+}
@@ -1,39 +1,141 @@
 package ru.mail.polis.eretic431;
 
-import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Memory table keeping keys and values off heap in an {@link Arena}.
+ * Rows are nodes of a lock-free skip list in the arena: address of the value (long), key length (int),
+ * height (int), addresses of the next nodes (long per level) and the key.
+ * A value is timestamp (long), sequence number of the write (long), address of the replaced value (long),
+ * length (int, -1 for tombstones) and data.
+ * Nodes are never removed, an upsert of a present key links a new value to its node in front of the replaced one,
+ * so reads pinned to a sequence number find the value they saw, and the memory of replaced values is taken
+ * until the table is dropped. Values of a node are ordered by sequence number, a value applied after one
+ * of a higher number is linked behind it, and of equal numbers the one applied later wins.
+ * Keys and values read are read-only views of the arena, which keep it alive after the table is dropped.
+ */
 public class MemoryTable implements Table {
-    private final SortedMap<ByteBuffer, Value> map = new TreeMap<>();
-    private long size;
+    private static final VarHandle ADDRESSES =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    // Levels are built with probability 1/4, enough for tens of millions of rows
+    private static final int MAX_HEIGHT = 12;
+    // The head is never a next node, so its address marks the end of a level
+    private static final long NONE = 0;
+
+    private static final int VALUE = 0;
+    private static final int KEY_LENGTH = VALUE + Long.BYTES;
+    private static final int HEIGHT = KEY_LENGTH + Integer.BYTES;
+    private static final int NEXT = HEIGHT + Integer.BYTES;
+
+    private static final int TIMESTAMP = 0;
+    private static final int SEQUENCE = TIMESTAMP + Long.BYTES;
+    private static final int PREVIOUS = SEQUENCE + Long.BYTES;
+    private static final int LENGTH = PREVIOUS + Long.BYTES;
+    private static final int DATA = LENGTH + Integer.BYTES;
+
+    private final Arena arena = new Arena();
+    private final long head;
+    private final AtomicInteger rows = new AtomicInteger();
+    private final AtomicLong size = new AtomicLong();
+
+    public MemoryTable() {
+        head = arena.allocate(NEXT + Long.BYTES * MAX_HEIGHT);
+        assert head == NONE;
+        final ByteBuffer slab = arena.slab(head);
+        slab.putInt(HEIGHT, MAX_HEIGHT);
+        for (int level = 0; level < MAX_HEIGHT; level++) {
+            ADDRESSES.setRelease(slab, NEXT + level * Long.BYTES, NONE);
+        }
+    }
 
     @Override
     public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
-        final Iterator<Map.Entry<ByteBuffer, Value>> iterator = map.tailMap(from).entrySet().iterator();
-        return Iterators.transform(iterator, element -> {
-            assert element != null;
-            return Row.of(element.getKey(), element.getValue());
-        });
+        return iterator(from, Long.MAX_VALUE);
+    }
+
+    /**
+     * Iterates over values written up to the sequence number, keys written later are skipped.
+     *
+     * @param from     is a key to start from
+     * @param sequence is the last write to see
+     * @return iterator over the latest values as of {@param sequence}
+     */
+    @NotNull
+    public Iterator<Row> iterator(
+            @NotNull final ByteBuffer from,
+            final long sequence) {
+        return new Iterator<>() {
+            private long node = skip(seek(from));
+
+            @Override
+            public boolean hasNext() {
+                return node != NONE;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new IllegalStateException("Iterator is empty!");
+                }
+                final Row row = Row.of(key(node), value(visible(node, sequence)));
+                node = skip(nextNode(node, 0));
+                return row;
+            }
+
+            private long skip(final long from) {
+                long next = from;
+                while (next != NONE && visible(next, sequence) == NONE) {
+                    next = nextNode(next, 0);
+                }
+                return next;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Finds the value written up to the sequence number.
+     *
+     * @param key      is a key to look for
+     * @param sequence is the last write to see
+     * @return value or tombstone, null if {@param key} was not written as of {@param sequence}
+     */
+    @Nullable
+    public Value get(
+            @NotNull final ByteBuffer key,
+            final long sequence) {
+        final long node = seek(key);
+        if (node == NONE || compareKey(node, key) != 0) {
+            return null;
+        }
+        final long record = visible(node, sequence);
+        return record == NONE ? null : value(record);
     }
 
     @Override
     public void upsert(
             @NotNull final ByteBuffer key,
             @NotNull final ByteBuffer value) {
-        final Value oldValue = map.put(key, Value.of(value));
-        resize(key, oldValue);
-        size += value.remaining();
+        upsert(key, Value.of(value));
     }
 
     /**
-     * Upserts value with determined timestamp.
+     * Upserts value with determined timestamp, seen by reads of any sequence number.
      *
      * @param key   is a key of row
      * @param value is a value of row
@@ -41,29 +143,268 @@ public class MemoryTable implements Table {
     public void upsert(
             @NotNull final ByteBuffer key,
             @NotNull final Value value) {
-        final Value oldValue = map.put(key, value);
-        resize(key, oldValue);
-        if (value.isTombstone()) {
+        upsert(key, value, 0);
+    }
+
+    /**
+     * Upserts value with determined timestamp.
+     *
+     * @param key      is a key of row
+     * @param value    is a value of row
+     * @param sequence is a sequence number of the write, reads of smaller numbers do not see it
+     */
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value,
+            final long sequence) {
+        final long record = write(value, sequence);
+        final long[] preds = new long[MAX_HEIGHT];
+        final long[] succs = new long[MAX_HEIGHT];
+        long pred = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            pred = find(key, pred, level, preds, succs);
+        }
+        if (succs[0] != NONE && compareKey(succs[0], key) == 0) {
+            replace(succs[0], record, value);
             return;
         }
-        size += value.getData().remaining();
+
+        final int height = randomHeight();
+        final long node = write(key, height, record);
+        final ByteBuffer slab = arena.slab(node);
+        for (int level = 0; level < height; level++) {
+            final int next = Arena.offset(node) + NEXT + level * Long.BYTES;
+            while (true) {
+                ADDRESSES.setRelease(slab, next, succs[level]);
+                final int predNext = Arena.offset(preds[level]) + NEXT + level * Long.BYTES;
+                if (ADDRESSES.compareAndSet(arena.slab(preds[level]), predNext, succs[level], node)) {
+                    break;
+                }
+                // Another node has been linked after the predecessor, the node goes after it if it is less
+                find(key, preds[level], level, preds, succs);
+                if (level == 0 && succs[0] != NONE && compareKey(succs[0], key) == 0) {
+                    // The same key has been inserted concurrently, the node is left unlinked
+                    replace(succs[0], record, value);
+                    return;
+                }
+            }
+        }
+        rows.incrementAndGet();
+        size.addAndGet(key.remaining() + length(value));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value value = map.put(key, Value.tombstone());
-        resize(key, value);
+        upsert(key, Value.tombstone());
     }
 
+    /**
+     * Returns size of keys and the latest values.
+     *
+     * @return size in bytes
+     */
     public long getSize() {
-        return size;
+        return size.get();
+    }
+
+    /**
+     * Returns memory taken by the table, including replaced values and headers of rows.
+     *
+     * @return size in bytes
+     */
+    public long getMemoryUsage() {
+        return arena.size();
+    }
+
+    public int getRowCount() {
+        return rows.get();
+    }
+
+    public boolean isEmpty() {
+        return rows.get() == 0;
+    }
+
+    /**
+     * Finds the first node of the level with key not less than the given one.
+     *
+     * @param key   is a key to look for
+     * @param from  is a node of the level less than {@param key} to start from
+     * @param level to search
+     * @param preds receives the last node less than {@param key}
+     * @param succs receives the found node, {@link #NONE} if there is none
+     * @return the last node less than {@param key}
+     */
+    private long find(
+            @NotNull final ByteBuffer key,
+            final long from,
+            final int level,
+            @NotNull final long[] preds,
+            @NotNull final long[] succs) {
+        long pred = from;
+        long next = nextNode(pred, level);
+        while (next != NONE && compareKey(next, key) < 0) {
+            pred = next;
+            next = nextNode(pred, level);
+        }
+        preds[level] = pred;
+        succs[level] = next;
+        return pred;
+    }
+
+    private long seek(@NotNull final ByteBuffer key) {
+        long pred = head;
+        long next = NONE;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = nextNode(pred, level);
+            while (next != NONE && compareKey(next, key) < 0) {
+                pred = next;
+                next = nextNode(pred, level);
+            }
+        }
+        return next;
+    }
+
+    private void replace(
+            final long node,
+            final long record,
+            @NotNull final Value value) {
+        final long sequence = arena.slab(record).getLong(Arena.offset(record) + SEQUENCE);
+        while (true) {
+            // Link the value in front of the first one not numbered higher
+            long owner = node;
+            int offset = Arena.offset(node) + VALUE;
+            long old = (long) ADDRESSES.getAcquire(arena.slab(owner), offset);
+            while (old != NONE && arena.slab(old).getLong(Arena.offset(old) + SEQUENCE) > sequence) {
+                owner = old;
+                offset = Arena.offset(old) + PREVIOUS;
+                old = (long) ADDRESSES.getAcquire(arena.slab(owner), offset);
+            }
+            ADDRESSES.setRelease(arena.slab(record), Arena.offset(record) + PREVIOUS, old);
+            if (ADDRESSES.compareAndSet(arena.slab(owner), offset, old, record)) {
+                if (owner == node) {
+                    final int oldLength = arena.slab(old).getInt(Arena.offset(old) + LENGTH);
+                    size.addAndGet(length(value) - Math.max(oldLength, 0));
+                }
+                return;
+            }
+        }
+    }
+
+    private static int length(@NotNull final Value value) {
+        final ByteBuffer data = value.getData();
+        return data == null ? 0 : data.remaining();
+    }
+
+    private long nextNode(
+            final long node,
+            final int level) {
+        return (long) ADDRESSES.getAcquire(arena.slab(node), Arena.offset(node) + NEXT + level * Long.BYTES);
+    }
+
+    private int compareKey(
+            final long node,
+            @NotNull final ByteBuffer key) {
+        final ByteBuffer slab = arena.slab(node);
+        return Keys.compare(slab, keyOffset(node), slab.getInt(Arena.offset(node) + KEY_LENGTH), key);
+    }
+
+    private int keyOffset(final long node) {
+        return Arena.offset(node) + NEXT + arena.slab(node).getInt(Arena.offset(node) + HEIGHT) * Long.BYTES;
+    }
+
+    @NotNull
+    private ByteBuffer key(final long node) {
+        final int length = arena.slab(node).getInt(Arena.offset(node) + KEY_LENGTH);
+        return slice(arena.slab(node), keyOffset(node), length);
+    }
+
+    /**
+     * Finds the latest value of the node written up to the sequence number.
+     *
+     * @param node     is a node to look at
+     * @param sequence is the last write to see
+     * @return address of the value, {@link #NONE} if there is none
+     */
+    private long visible(
+            final long node,
+            final long sequence) {
+        long record = (long) ADDRESSES.getAcquire(arena.slab(node), Arena.offset(node) + VALUE);
+        while (record != NONE && arena.slab(record).getLong(Arena.offset(record) + SEQUENCE) > sequence) {
+            record = (long) ADDRESSES.getAcquire(arena.slab(record), Arena.offset(record) + PREVIOUS);
+        }
+        return record;
+    }
+
+    @NotNull
+    private Value value(final long record) {
+        final ByteBuffer slab = arena.slab(record);
+        final int offset = Arena.offset(record);
+        final long timestamp = slab.getLong(offset + TIMESTAMP);
+        final int length = slab.getInt(offset + LENGTH);
+        if (length < 0) {
+            return Value.tombstone(timestamp);
+        }
+        return Value.of(timestamp, slice(slab, offset + DATA, length));
+    }
+
+    private long write(
+            @NotNull final Value value,
+            final long sequence) {
+        final ByteBuffer data = value.getData();
+        final int length = data == null ? 0 : data.remaining();
+        final long record = arena.allocate(DATA + length);
+        final ByteBuffer slab = arena.slab(record);
+        final int offset = Arena.offset(record);
+        slab.putLong(offset + TIMESTAMP, value.getTimestamp());
+        slab.putLong(offset + SEQUENCE, sequence);
+        slab.putLong(offset + PREVIOUS, NONE);
+        slab.putInt(offset + LENGTH, data == null ? -1 : length);
+        if (data != null) {
+            copy(data, slab, offset + DATA);
+        }
+        return record;
+    }
+
+    private long write(
+            @NotNull final ByteBuffer key,
+            final int height,
+            final long record) {
+        final int keyOffset = NEXT + height * Long.BYTES;
+        final long node = arena.allocate(keyOffset + key.remaining());
+        final ByteBuffer slab = arena.slab(node);
+        final int offset = Arena.offset(node);
+        slab.putLong(offset + VALUE, record);
+        slab.putInt(offset + KEY_LENGTH, key.remaining());
+        slab.putInt(offset + HEIGHT, height);
+        copy(key, slab, offset + keyOffset);
+        return node;
+    }
+
+    private static void copy(
+            @NotNull final ByteBuffer src,
+            @NotNull final ByteBuffer slab,
+            final int offset) {
+        final ByteBuffer dst = slab.duplicate();
+        dst.position(offset);
+        Block.Builder.put(dst, src, 0);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer slab,
+            final int offset,
+            final int length) {
+        final ByteBuffer view = slab.asReadOnlyBuffer();
+        view.limit(offset + length).position(offset);
+        return view.slice();
     }
 
-    private void resize(@NotNull final ByteBuffer key, @Nullable final Value value) {
-        if (value == null || value.getData() == null) {
-            size += key.remaining();
-        } else {
-            size -= value.getData().remaining();
+    private static int randomHeight() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int height = 1;
+        while (height < MAX_HEIGHT && (random.nextInt() & 3) == 0) {
+            height++;
         }
+        return height;
     }
 }
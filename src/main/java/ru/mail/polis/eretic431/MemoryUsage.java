@@ -0,0 +1,58 @@
+package ru.mail.polis.eretic431;
+
+/**
+ * Memory taken by parts of a {@link LsmDAO} at some moment, which are kept within {@link Config#getMemoryBudget()}.
+ */
+public final class MemoryUsage {
+    private final long memTables;
+    private final long blockCache;
+    private final long indexes;
+    private final long budget;
+
+    MemoryUsage(
+            final long memTables,
+            final long blockCache,
+            final long indexes,
+            final long budget) {
+        this.memTables = memTables;
+        this.blockCache = blockCache;
+        this.indexes = indexes;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns direct memory of the memory table and the frozen ones waiting for flush,
+     * including replaced values and headers of rows.
+     *
+     * @return size in bytes
+     */
+    public long getMemTables() {
+        return memTables;
+    }
+
+    public long getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Returns heap taken by sparse indexes and bloom filters of tables on disk.
+     *
+     * @return size in bytes
+     */
+    public long getIndexes() {
+        return indexes;
+    }
+
+    public long getTotal() {
+        return memTables + blockCache + indexes;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    @Override
+    public String toString() {
+        return "memTables=" + memTables + ", blockCache=" + blockCache + ", indexes=" + indexes + ", budget=" + budget;
+    }
+}
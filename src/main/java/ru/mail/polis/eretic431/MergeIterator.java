@@ -0,0 +1,134 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sorted iterators of rows into the newest version of every key by a tree of losers.
+ * Older versions are skipped and tombstones optionally dropped in the same pass, rows are returned as they come.
+ * Versions of a key are ordered by timestamp, the same timestamps by sources: the earlier the newer.
+ */
+final class MergeIterator implements Iterator<Row> {
+    private final List<Iterator<Row>> sources;
+    private final Row[] heads;
+    // Node 0 holds the winner, the other nodes losers of their subtrees, leaf of source i is node i + k
+    private final int[] tree;
+    private final boolean dropTombstones;
+
+    @Nullable
+    private Row next;
+
+    /**
+     * Creates merge of sources.
+     *
+     * @param sources        are iterators sorted by key with a single version of every key, the newest first
+     * @param dropTombstones is true if removed keys are to be skipped
+     */
+    MergeIterator(
+            @NotNull final List<Iterator<Row>> sources,
+            final boolean dropTombstones) {
+        final int k = Math.max(sources.size(), 1);
+        this.sources = new ArrayList<>(sources);
+        this.heads = new Row[k];
+        this.tree = new int[k];
+        this.dropTombstones = dropTombstones;
+        for (int i = 0; i < sources.size(); i++) {
+            final Iterator<Row> source = sources.get(i);
+            heads[i] = source.hasNext() ? source.next() : null;
+        }
+        tree[0] = build(1);
+        next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Row next() {
+        if (next == null) {
+            throw new NoSuchElementException("Iterator is empty!");
+        }
+        final Row row = next;
+        next = advance();
+        return row;
+    }
+
+    @Nullable
+    private Row advance() {
+        while (true) {
+            final Row top = heads[tree[0]];
+            if (top == null) {
+                return null;
+            }
+            pop();
+            for (Row shadowed = heads[tree[0]];
+                    shadowed != null && Keys.compare(shadowed.key(), top.key()) == 0;
+                    shadowed = heads[tree[0]]) {
+                pop();
+            }
+            if (!dropTombstones || !top.getValue().isTombstone()) {
+                return top;
+            }
+        }
+    }
+
+    /**
+     * Moves the winning source to its next row and replays matches on the path from its leaf.
+     */
+    private void pop() {
+        int winner = tree[0];
+        final Iterator<Row> source = sources.get(winner);
+        heads[winner] = source.hasNext() ? source.next() : null;
+        for (int node = (winner + tree.length) >>> 1; node > 0; node >>>= 1) {
+            if (beats(tree[node], winner)) {
+                final int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Plays matches of a subtree, leaving losers in its nodes.
+     *
+     * @param node is a root of the subtree
+     * @return winner of the subtree
+     */
+    private int build(final int node) {
+        if (node >= tree.length) {
+            return node - tree.length;
+        }
+        final int left = build(node * 2);
+        final int right = build(node * 2 + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    private boolean beats(
+            final int a,
+            final int b) {
+        final Row first = heads[a];
+        final Row second = heads[b];
+        if (first == null || second == null) {
+            return second == null && (first != null || a < b);
+        }
+        final int keys = Keys.compare(first.key(), second.key());
+        if (keys != 0) {
+            return keys < 0;
+        }
+        final long timestamps = Long.compare(first.getValue().getTimestamp(), second.getValue().getTimestamp());
+        return timestamps == 0 ? a < b : timestamps > 0;
+    }
+}
@@ -6,7 +6,10 @@ import java.nio.ByteBuffer;
 import java.util.Comparator;
 
 public class Row {
-    public static final Comparator<Row> COMPARATOR = Comparator.comparing(Row::getKey).thenComparing(Row::getValue);
+    public static final Comparator<Row> COMPARATOR = (left, right) -> {
+        final int keys = Keys.compare(left.key, right.key);
+        return keys == 0 ? left.value.compareTo(right.value) : keys;
+    };
 
     private final ByteBuffer key;
     private final Value value;
@@ -26,6 +29,16 @@ public class Row {
         return key.asReadOnlyBuffer();
     }
 
+    /**
+     * Returns the key itself, for comparisons which neither move nor keep it.
+     *
+     * @return key shared with the row
+     */
+    @NotNull
+    ByteBuffer key() {
+        return key;
+    }
+
     public Value getValue() {
         return value;
     }
@@ -1,111 +1,371 @@
 package ru.mail.polis.eretic431;
 
-import com.google.common.primitives.Longs;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
 
+/**
+ * Immutable sorted table file.
+ * Reads use absolute positions of the mapped file only, so threads look tables up and scan them at once
+ * without locking, and iterators over the same table do not interfere.
+ */
 final class SSTable implements Table {
     public static final String DAT = ".dat";
     public static final String TMP = ".tmp";
+    // Tables are written in few big writes through direct buffers of this size, owned by writing threads
+    static final int WRITE_BUFFER_BYTES = 1024 * 1024;
+
+    /*
+     * Files end with a footer: fields, footer length (int), format version (int) and MAGIC (long).
+     * Legacy files end with a non-negative row count instead, so negative MAGIC tells them apart.
+     * Version 2 appends the level of the table to the fields, older files belong to level 0.
+     * Version 3 appends the order of the table among level 0 tables, older files are ordered by generation.
+     *
+     * Up to version 3 rows are followed by an index of row offsets (long each).
+     * Version 4 groups rows into blocks (see Block) followed by a sparse index of blocks:
+     * first key length (int), first key and block offset (long) per block. Number of blocks is appended to the fields.
+     * Version 5 precedes every block with its type (byte) and uncompressed length (int), blocks are either raw
+     * or compressed with the codec of the table. Identifier of the table Compression is appended to the fields.
+     * Version 6 stores keys of a block as suffixes of the previous keys.
+     * Version 7 has varint row headers and timestamps relative to the block, the sparse index has varint
+     * key lengths and differences of block offsets.
+     * Version 8 appends CRC32C of stored block contents to block headers and CRC32C of the sparse index,
+     * the bloom filter and the preceding footer fields to the fields.
+     *
+     * Blocks are mapped by segments of whole blocks, so a table may exceed 2 GB unlike a single mapping.
+     * Tables indexed by row are mapped whole.
+     */
+    private static final long MAGIC = 0xE7E71C43_155AB1E5L;
+    private static final int VERSION = 8;
+    private static final int BLOCKS_VERSION = 4;
+    private static final int COMPRESSION_VERSION = 5;
+    private static final int PREFIX_VERSION = 6;
+    private static final int COMPACT_VERSION = 7;
+    private static final int CHECKSUM_VERSION = 8;
+    private static final int FOOTER_FIELDS_BYTES = Long.BYTES * 3 + Integer.BYTES * 6;
+    private static final int FOOTER_TAIL_BYTES = Integer.BYTES * 2 + Long.BYTES;
+    private static final int MAX_HEAP_KEY_BYTES = 1024;
+    private static final byte RAW_BLOCK = 0;
+    private static final byte COMPRESSED_BLOCK = 1;
+    private static final int BLOCK_HEADER_BYTES = Byte.BYTES + Integer.BYTES * 2;
+    private static final int UNCHECKED_BLOCK_HEADER_BYTES = Byte.BYTES + Integer.BYTES;
+    // Segments end at the first block boundary past this size, a huge block takes a segment alone
+    private static final long SEGMENT_BYTES = 1L << 30;
+    // Headers of an array and of a ByteBuffer wrapping it
+    private static final int BUFFER_OVERHEAD = 64;
 
     final File file;
-    private final MappedByteBuffer memMap;
+    private final long size;
+    // Whole file of tables indexed by row, null for tables of blocks
+    @Nullable
+    private final ByteBuffer memMap;
+    // Mapped blocks of tables of blocks, each segment starts at a block
+    @Nullable
+    private final ByteBuffer[] segments;
+    @Nullable
+    private final long[] segmentOffsets;
+    @Nullable
+    private final int[] blockSegments;
     private final int generation;
+    private final int level;
+    private final int order;
     private final long indexBytes;
-    private final int quantity;
+    private final long quantity;
+    // Sparse index of blocks, null for tables indexed by row
+    @Nullable
+    private final ByteBuffer[] firstKeys;
+    @Nullable
+    private final long[] blockOffsets;
+    // Null for tables with blocks not preceded by headers
+    @Nullable
+    private final Compression compression;
+    private final int blockFormat;
+    private final boolean checksums;
+    private final Verification verification;
+    // Bits of blocks with checked checksums, shared by readers of the table
+    @Nullable
+    private final AtomicLongArray verified;
+    private final AtomicInteger verifiedBlocks;
+    @Nullable
+    private final BlockCache cache;
+    private final boolean fillCache;
+    private final CacheStats cacheStats;
+    @Nullable
+    private final BloomFilter bloomFilter;
+    private final ByteBuffer minKey;
+    private final ByteBuffer maxKey;
+    private final long indexMemory;
 
     /**
      * Flushes memory table.
      *
-     * @param rows       is a Iterator over {@link Row}
-     * @param storage    where file flushed to
-     * @param generation of memory table
-     * @return Flushed file
+     * @param rows         is a Iterator over {@link Row}
+     * @param expectedRows is an estimate of rows count used to size the bloom filter
+     * @param storage      where file flushed to
+     * @param generation   of memory table
+     * @param level        the table belongs to, 0 for flushed memory tables
+     * @param order        of the table among level 0 tables, {@param generation} for flushed memory tables
+     * @param config       with block size, compression and durability of the table
+     * @param cache        for decoded blocks of the table, null to decode blocks on every read
+     * @param buffer       is a direct buffer of {@link #WRITE_BUFFER_BYTES} the file is written through
+     * @return Flushed file, checksums of which are checked as {@link Config#getVerification()} says
      * @throws IOException when {@link FileChannel} opening goes wrong
      */
     public static SSTable flush(
             @NotNull final Iterator<Row> rows,
+            final long expectedRows,
             @NotNull final File storage,
-            final int generation) throws IOException {
+            final int generation,
+            final int level,
+            final int order,
+            @NotNull final Config config,
+            @Nullable final BlockCache cache,
+            @NotNull final ByteBuffer buffer) throws IOException {
         if (!rows.hasNext()) {
             return null;
         }
 
         final File sstFile = new File(storage, generation + SSTable.DAT);
         final File tmp = new File(storage, generation + SSTable.TMP);
-        tmp.createNewFile();
 
-        final List<Long> positions = new ArrayList<>();
-
-        long count = 0;
-        try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+        // A leftover of a crashed flush of the same generation is overwritten
+        try (FileChannel fc = FileChannel.open(
+                tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final Writer writer = new Writer(fc, buffer, expectedRows, config);
             while (rows.hasNext()) {
-                final Row row = rows.next();
-                final ByteBuffer key = row.getKey();
-                final Value value = row.getValue();
-                positions.add(fc.position());
-
-                fc.write(ByteBuffer.wrap(Longs.toByteArray(key.remaining())));
-                fc.write(key);
-
-                fc.write(ByteBuffer.wrap(Longs.toByteArray(value.getTimestamp())));
-                if (value.isTombstone()) {
-                    fc.write(ByteBuffer.wrap(Longs.toByteArray(-1)));
-                } else {
-                    final ByteBuffer data = value.getData();
-                    assert data != null;
-                    fc.write(ByteBuffer.wrap(Longs.toByteArray(data.remaining())));
-                    fc.write(data);
-                }
-                key.clear();
-                if (value.getData() != null) {
-                    value.getData().clear();
-                }
-
-                count++;
+                writer.add(rows.next());
             }
-
-            for (final long position : positions) {
-                fc.write(ByteBuffer.wrap(Longs.toByteArray(position)));
+            writer.finish(level, order);
+            if (config.getDurability().syncsFiles()) {
+                fc.force(true);
             }
-
-            fc.write(ByteBuffer.wrap(Longs.toByteArray(count)));
             Files.move(tmp.toPath(), sstFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
         }
+        if (config.getDurability().syncsFiles()) {
+            Durability.syncDirectory(storage);
+        }
 
         sstFile.setReadOnly();
 
-        return new SSTable(sstFile);
+        return new SSTable(sstFile, cache, config.getVerification());
     }
 
     public SSTable(@NotNull final File file) throws IOException {
+        this(file, null, Verification.FIRST_TOUCH);
+    }
+
+    /**
+     * Opens table file.
+     *
+     * @param file         is a table file
+     * @param cache        for decoded blocks of the table, null to decode blocks on every read
+     * @param verification of checksums of blocks read
+     * @throws IOException when the file can not be read, has unknown format or damaged footer
+     */
+    public SSTable(
+            @NotNull final File file,
+            @Nullable final BlockCache cache,
+            @NotNull final Verification verification) throws IOException {
         this.file = file;
+        this.cache = cache;
+        this.verification = verification;
+        this.verifiedBlocks = new AtomicInteger();
+        this.fillCache = true;
+        this.cacheStats = new CacheStats();
         final String name = file.getName();
         generation = Integer.parseInt(name.substring(0, name.length() - DAT.length()));
 
         try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
-            memMap = fc.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            size = fc.size();
+            if (size < Long.BYTES) {
+                throw new IOException("Unknown format of " + file);
+            }
+            final long tail = read(fc, size - Long.BYTES, Long.BYTES).getLong();
+            if (tail >= 0) {
+                memMap = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                segments = null;
+                segmentOffsets = null;
+                blockSegments = null;
+                quantity = tail;
+                indexBytes = size - (long) Long.BYTES * (quantity + 1);
+                bloomFilter = null;
+                level = 0;
+                order = generation;
+                firstKeys = null;
+                blockOffsets = null;
+                compression = null;
+                blockFormat = Block.PLAIN;
+                checksums = false;
+                verified = null;
+                minKey = firstKey();
+                maxKey = lastKey();
+                indexMemory = 0;
+                return;
+            }
+
+            if (tail != MAGIC) {
+                throw new IOException("Unknown format of " + file);
+            }
+            final ByteBuffer trailer = read(fc, size - FOOTER_TAIL_BYTES, FOOTER_TAIL_BYTES);
+            final int version = trailer.getInt(Integer.BYTES);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            final long footer = size - FOOTER_TAIL_BYTES - trailer.getInt(0);
+            indexBytes = read(fc, footer + Long.BYTES, Long.BYTES).getLong();
+            if (indexBytes < 0 || indexBytes > footer || size - indexBytes > Integer.MAX_VALUE) {
+                throw new IOException("Damaged footer of " + file);
+            }
+            // The sparse index, the bloom filter and the footer
+            final ByteBuffer meta = fc.map(FileChannel.MapMode.READ_ONLY, indexBytes, size - indexBytes);
+            final int fields = (int) (footer - indexBytes);
+            checksums = version >= CHECKSUM_VERSION;
+            if (checksums && verification != Verification.NEVER) {
+                final int checksumOffset = fields + Long.BYTES * 3 + Integer.BYTES * 5;
+                final ByteBuffer covered = meta.duplicate();
+                covered.limit(checksumOffset);
+                if (checksum(covered) != meta.getInt(checksumOffset)) {
+                    throw new IOException("Damaged footer of " + file);
+                }
+            }
+            quantity = meta.getLong(fields);
+            if (quantity < 0) {
+                throw new IOException("Damaged footer of " + file);
+            }
+            final long bloomOffset = meta.getLong(fields + Long.BYTES * 2);
+            final int bloomHashes = meta.getInt(fields + Long.BYTES * 3);
+            level = version >= 2 ? meta.getInt(fields + Long.BYTES * 3 + Integer.BYTES) : 0;
+            order = version >= 3 ? meta.getInt(fields + Long.BYTES * 3 + Integer.BYTES * 2) : generation;
+            final ByteBuffer bloom = meta.duplicate();
+            bloom.position((int) (bloomOffset - indexBytes));
+            bloomFilter = BloomFilter.read(bloom, (int) ((footer - bloomOffset) / Long.BYTES), bloomHashes);
+
+            if (version >= BLOCKS_VERSION) {
+                final int blocks = meta.getInt(fields + Long.BYTES * 3 + Integer.BYTES * 3);
+                firstKeys = new ByteBuffer[blocks];
+                blockOffsets = new long[blocks + 1];
+                final boolean compact = version >= COMPACT_VERSION;
+                final ByteBuffer index = meta.duplicate();
+                for (int i = 0; i < blocks; i++) {
+                    final int keyLength = compact ? (int) Varints.get(index) : index.getInt();
+                    final ByteBuffer key = index.duplicate();
+                    key.limit(key.position() + keyLength);
+                    // Copied to heap, so a seek does not touch the file until the block is read.
+                    // Huge keys stay in the file, comparing them costs more than a page fault anyway
+                    firstKeys[i] = keyLength <= MAX_HEAP_KEY_BYTES
+                            ? ByteBuffer.allocate(keyLength).put(key).flip()
+                            : key.slice();
+                    index.position(index.position() + keyLength);
+                    blockOffsets[i] = compact
+                            ? (i == 0 ? 0 : blockOffsets[i - 1]) + Varints.get(index)
+                            : index.getLong();
+                }
+                blockOffsets[blocks] = indexBytes;
+                verified = checksums ? new AtomicLongArray((blocks + Long.SIZE - 1) / Long.SIZE) : null;
+
+                memMap = null;
+                blockSegments = new int[blocks];
+                segmentOffsets = new long[segmentCount(blockOffsets, blockSegments)];
+                segments = new ByteBuffer[segmentOffsets.length];
+                for (int i = 0; i < blocks; i++) {
+                    final int segment = blockSegments[i];
+                    if (i == 0 || blockSegments[i - 1] != segment) {
+                        segmentOffsets[segment] = blockOffsets[i];
+                    }
+                    if (i + 1 == blocks || blockSegments[i + 1] != segment) {
+                        final long offset = segmentOffsets[segment];
+                        segments[segment] = fc.map(
+                                FileChannel.MapMode.READ_ONLY, offset, blockOffsets[i + 1] - offset);
+                    }
+                }
+            } else {
+                memMap = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                segments = null;
+                segmentOffsets = null;
+                blockSegments = null;
+                firstKeys = null;
+                blockOffsets = null;
+                verified = null;
+            }
+            if (version >= COMPRESSION_VERSION) {
+                compression = Compression.of(meta.getInt(fields + Long.BYTES * 3 + Integer.BYTES * 4));
+                if (compression == null) {
+                    throw new IOException("Unknown compression of " + file);
+                }
+            } else {
+                compression = null;
+            }
+            if (version >= COMPACT_VERSION) {
+                blockFormat = Block.COMPACT;
+            } else {
+                blockFormat = version >= PREFIX_VERSION ? Block.PREFIXED : Block.PLAIN;
+            }
         }
+        minKey = firstKey();
+        maxKey = lastKey();
+        indexMemory = indexMemory();
+    }
+
+    private SSTable(@NotNull final SSTable sst) {
+        this.file = sst.file;
+        this.size = sst.size;
+        this.memMap = sst.memMap;
+        this.segments = sst.segments;
+        this.segmentOffsets = sst.segmentOffsets;
+        this.blockSegments = sst.blockSegments;
+        this.generation = sst.generation;
+        this.level = sst.level;
+        this.order = sst.order;
+        this.indexBytes = sst.indexBytes;
+        this.quantity = sst.quantity;
+        this.firstKeys = sst.firstKeys;
+        this.blockOffsets = sst.blockOffsets;
+        this.compression = sst.compression;
+        this.blockFormat = sst.blockFormat;
+        this.checksums = sst.checksums;
+        this.verification = sst.verification;
+        this.verified = sst.verified;
+        this.verifiedBlocks = sst.verifiedBlocks;
+        this.cache = sst.cache;
+        this.fillCache = false;
+        this.cacheStats = sst.cacheStats;
+        this.bloomFilter = sst.bloomFilter;
+        this.minKey = sst.minKey;
+        this.maxKey = sst.maxKey;
+        this.indexMemory = sst.indexMemory;
+    }
 
-        quantity = (int) memMap.getLong(memMap.limit() - Long.BYTES);
-        indexBytes = memMap.remaining() - (long) Long.BYTES * (quantity + 1);
+    /**
+     * Creates a view of the same file, blocks of which are not cached, so a compaction does not evict blocks of reads.
+     *
+     * @return reader of this table not filling the block cache
+     */
+    @NotNull
+    SSTable reader() {
+        return new SSTable(this);
     }
 
     @Override
     public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+        if (blockOffsets != null) {
+            return blockIterator(from);
+        }
         return new Iterator<>() {
-            private int position = binarySearch(from);
+            private int position = binarySearch(from, 0);
 
             @Override
             public boolean hasNext() {
@@ -122,6 +382,90 @@ final class SSTable implements Table {
         };
     }
 
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        if (blockOffsets != null) {
+            final int index = floorBlock(key);
+            if (index < 0) {
+                return null;
+            }
+            final Block.Cursor cursor = block(index).seek(key);
+            if (!cursor.next() || cursor.compareKey(key) != 0) {
+                return null;
+            }
+            return cursor.value();
+        }
+
+        final int position = binarySearch(key, 0);
+        if (position >= quantity || compareKey(position, key) != 0) {
+            return null;
+        }
+        return getValue(position, key.remaining());
+    }
+
+    /**
+     * Looks keys up in a single forward pass over the index, so a block is read once for all of its keys.
+     *
+     * @param keys   are distinct keys to look for in ascending order
+     * @param values receives versions stored in the table, keys with a version found already are skipped
+     */
+    void get(
+            @NotNull final ByteBuffer[] keys,
+            @NotNull final Value[] values) {
+        if (quantity == 0) {
+            return;
+        }
+        int index = 0;
+        Block block = null;
+        int position = 0;
+        for (int i = lowerBound(keys, minKey); i < keys.length && Keys.compare(keys[i], maxKey) <= 0; i++) {
+            final ByteBuffer key = keys[i];
+            if (values[i] != null || !mightContain(key)) {
+                continue;
+            }
+            if (blockOffsets == null) {
+                position = binarySearch(key, position);
+                if (position < quantity && compareKey(position, key) == 0) {
+                    values[i] = getValue(position, key.remaining());
+                }
+                continue;
+            }
+            final int next = nextBlock(key, index);
+            if (block == null || next != index) {
+                index = next;
+                block = block(index);
+            }
+            final Block.Cursor cursor = block.seek(key);
+            if (cursor.next() && cursor.compareKey(key) == 0) {
+                values[i] = cursor.value();
+            }
+        }
+    }
+
+    /**
+     * Finds the first of sorted keys not less than the given one.
+     *
+     * @param keys are keys in ascending order
+     * @param key  is a key to look for
+     * @return index of the key, length of {@param keys} if there is none
+     */
+    private static int lowerBound(
+            @NotNull final ByteBuffer[] keys,
+            @NotNull final ByteBuffer key) {
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            final int pivot = (low + high) >>> 1;
+            if (Keys.compare(keys[pivot], key) < 0) {
+                low = pivot + 1;
+            } else {
+                high = pivot - 1;
+            }
+        }
+        return low;
+    }
+
     @Override
     public void upsert(
             @NotNull final ByteBuffer key,
@@ -134,24 +478,538 @@ final class SSTable implements Table {
         throw new UnsupportedOperationException("Method is not supported!");
     }
 
+    /**
+     * Checks key against the bloom filter of this table.
+     *
+     * @param key is a key to look for
+     * @return false if the table definitely does not contain {@param key}
+     */
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        return bloomFilter == null || bloomFilter.mightContain(key);
+    }
+
+    public long getRowCount() {
+        return quantity;
+    }
+
     public int getGeneration() {
         return generation;
     }
 
-    private int binarySearch(@NotNull final ByteBuffer from) {
-        int low = 0;
-        int high = quantity - 1;
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns position of the table among level 0 tables, the greater the newer.
+     * Flushed memory tables are ordered by generation, compaction results take the order of the newest input.
+     *
+     * @return order of the table
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Checks checksums of every block whatever the verification mode is.
+     *
+     * @throws IllegalStateException when a block is damaged
+     */
+    void verify() {
+        if (blockOffsets == null || !checksums) {
+            return;
+        }
+        for (int i = 0; i < blockOffsets.length - 1; i++) {
+            verify(i, stored(i));
+        }
+    }
+
+    /**
+     * Checks whether checksum of every block has been checked since the table was opened.
+     *
+     * @return true if there is nothing left to verify
+     */
+    boolean isVerified() {
+        return blockOffsets == null || !checksums || verifiedBlocks.get() == blockOffsets.length - 1;
+    }
+
+    /**
+     * Returns heap taken by the sparse index and the bloom filter of the table, which stay in memory while it is open.
+     *
+     * @return size in bytes
+     */
+    public long getIndexMemory() {
+        return indexMemory;
+    }
+
+    @NotNull
+    public CacheStats getCacheStats() {
+        return cacheStats;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @NotNull
+    public ByteBuffer getMinKey() {
+        return minKey.duplicate();
+    }
+
+    @NotNull
+    public ByteBuffer getMaxKey() {
+        return maxKey.duplicate();
+    }
+
+    /**
+     * Checks whether key range of this table intersects the given one.
+     *
+     * @param from is the lowest key of the range
+     * @param to   is the highest key of the range, inclusive
+     * @return true if the table may hold keys between {@param from} and {@param to}
+     */
+    public boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        return quantity > 0 && Keys.compare(minKey, to) <= 0 && Keys.compare(maxKey, from) >= 0;
+    }
+
+    private long indexMemory() {
+        long memory = bloomFilter == null ? 0 : (long) bloomFilter.length() * Long.BYTES;
+        if (firstKeys != null && blockOffsets != null && blockSegments != null) {
+            for (final ByteBuffer key : firstKeys) {
+                memory += BUFFER_OVERHEAD + (key.hasArray() ? key.capacity() : 0);
+            }
+            memory += (long) blockOffsets.length * Long.BYTES + (long) blockSegments.length * Integer.BYTES;
+        }
+        if (verified != null) {
+            memory += (long) verified.length() * Long.BYTES;
+        }
+        return memory;
+    }
 
+    private ByteBuffer firstKey() {
+        if (quantity == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        return firstKeys == null ? getKey(0) : firstKeys[0];
+    }
+
+    private ByteBuffer lastKey() {
+        if (quantity == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        if (firstKeys == null) {
+            return getKey(quantity - 1);
+        }
+        return block(firstKeys.length - 1).lastKey();
+    }
+
+    private Iterator<Row> blockIterator(@NotNull final ByteBuffer from) {
+        final int first = Math.max(floorBlock(from), 0);
+        return new Iterator<>() {
+            private int index = first;
+            private Block.Cursor cursor = index < blockCount() ? block(index).seek(from) : null;
+            private boolean ready;
+
+            @Override
+            public boolean hasNext() {
+                while (!ready && cursor != null) {
+                    ready = cursor.next();
+                    if (!ready) {
+                        index++;
+                        cursor = index < blockCount() ? block(index).cursor() : null;
+                    }
+                }
+                return ready;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new IllegalStateException("Iterator is empty!");
+                }
+                ready = false;
+                return cursor.row();
+            }
+        };
+    }
+
+    private int blockCount() {
+        assert firstKeys != null;
+        return firstKeys.length;
+    }
+
+    /**
+     * Finds the last block with the first key not greater than the given one in the sparse index.
+     *
+     * @param key is a key to look for
+     * @return index of the block, -1 if {@param key} is less than every key of the table
+     */
+    private int floorBlock(@NotNull final ByteBuffer key) {
+        assert firstKeys != null;
+        return floorBlock(key, 0, firstKeys.length - 1);
+    }
+
+    /**
+     * Finds the block of the key going forward from a block not after it, in steps doubling from one block.
+     * Keys close to each other cost a few comparisons instead of a binary search over the whole index.
+     *
+     * @param key  is a key not less than the minimal key of the table
+     * @param from is a block with the first key not greater than {@param key}
+     * @return index of the last block with the first key not greater than {@param key}
+     */
+    private int nextBlock(
+            @NotNull final ByteBuffer key,
+            final int from) {
+        assert firstKeys != null;
+        int low = from;
+        int step = 1;
+        while (low + step < firstKeys.length && Keys.compare(firstKeys[low + step], key) <= 0) {
+            low += step;
+            step <<= 1;
+        }
+        return floorBlock(key, low, Math.min(low + step, firstKeys.length) - 1);
+    }
+
+    private int floorBlock(
+            @NotNull final ByteBuffer key,
+            final int from,
+            final int to) {
+        assert firstKeys != null;
+        int low = from;
+        int high = to;
         while (low <= high) {
             final int pivot = (low + high) >>> 1;
-            final ByteBuffer pivotVal = getKey(pivot);
-            if (pivotVal.compareTo(from) < 0) {
+            if (Keys.compare(firstKeys[pivot], key) <= 0) {
                 low = pivot + 1;
             } else {
-                if (pivotVal.compareTo(from) <= 0) {
-                    return pivot;
+                high = pivot - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    private Block block(final int index) {
+        final ByteBuffer data = stored(index);
+        if (compression == null) {
+            return new Block(data.slice(), Block.PLAIN);
+        }
+
+        final byte type = data.get(data.position());
+        final int length = data.getInt(data.position() + Byte.BYTES);
+        if (type == RAW_BLOCK) {
+            if (checksums && verification != Verification.NEVER
+                    && (verification == Verification.ALWAYS || !isVerified(index))) {
+                verify(index, data.duplicate());
+            }
+            data.position(data.position() + (checksums ? BLOCK_HEADER_BYTES : UNCHECKED_BLOCK_HEADER_BYTES));
+            return new Block(data.slice(), blockFormat);
+        }
+        final Codec codec = compression.codec();
+        if (type != COMPRESSED_BLOCK || codec == null) {
+            throw new IllegalStateException("Unknown type of block " + index + " in " + file);
+        }
+        if (cache != null) {
+            final Block cached = cache.get(generation, blockOffsets[index]);
+            if (cached != null) {
+                cacheStats.hit();
+                return cached;
+            }
+            cacheStats.miss();
+        }
+        // Decompressing damaged data may fail before the block is checked, so the check goes first
+        if (checksums && verification != Verification.NEVER
+                && (verification == Verification.ALWAYS || !isVerified(index))) {
+            verify(index, data.duplicate());
+        }
+        data.position(data.position() + (checksums ? BLOCK_HEADER_BYTES : UNCHECKED_BLOCK_HEADER_BYTES));
+
+        final ByteBuffer raw = ByteBuffer.allocate(length);
+        try {
+            codec.decompress(data, raw);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Damaged block " + index + " in " + file, e);
+        }
+        final Block block = new Block(raw.flip(), blockFormat);
+        if (cache != null && fillCache) {
+            cache.put(generation, blockOffsets[index], block, length);
+        }
+        return block;
+    }
+
+    /**
+     * Returns a stored block within its segment.
+     *
+     * @param index of the block
+     * @return the block with its header from position to limit
+     */
+    private ByteBuffer stored(final int index) {
+        assert segments != null && segmentOffsets != null && blockSegments != null && blockOffsets != null;
+        final int segment = blockSegments[index];
+        final ByteBuffer data = segments[segment].duplicate();
+        final long offset = segmentOffsets[segment];
+        data.position((int) (blockOffsets[index] - offset)).limit((int) (blockOffsets[index + 1] - offset));
+        return data;
+    }
+
+    /**
+     * Assigns blocks to segments, starting a segment at the first block which would make the current one
+     * exceed {@link #SEGMENT_BYTES}.
+     *
+     * @param blockOffsets  of blocks followed by the offset of the sparse index
+     * @param blockSegments receives the segment of every block
+     * @return number of segments
+     */
+    private static int segmentCount(
+            @NotNull final long[] blockOffsets,
+            @NotNull final int[] blockSegments) {
+        int segment = 0;
+        long start = 0;
+        for (int i = 0; i < blockSegments.length; i++) {
+            if (blockOffsets[i + 1] - start > SEGMENT_BYTES && blockOffsets[i] > start) {
+                segment++;
+                start = blockOffsets[i];
+            }
+            blockSegments[i] = segment;
+        }
+        return blockSegments.length == 0 ? 0 : segment + 1;
+    }
+
+    private static ByteBuffer read(
+            @NotNull final FileChannel fc,
+            final long position,
+            final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Checks checksum of a stored block and remembers it is intact.
+     *
+     * @param index of the block
+     * @param data  is the block with its header
+     * @throws IllegalStateException when the block is damaged
+     */
+    private void verify(
+            final int index,
+            @NotNull final ByteBuffer data) {
+        assert verified != null;
+        final int expected = data.getInt(data.position() + Byte.BYTES + Integer.BYTES);
+        data.position(data.position() + BLOCK_HEADER_BYTES);
+        if (checksum(data) != expected) {
+            throw new IllegalStateException("Checksum mismatch in block " + index + " of " + file);
+        }
+        final long bit = 1L << index;
+        final long previous = verified.getAndAccumulate(index / Long.SIZE, bit, (bits, b) -> bits | b);
+        if ((previous & bit) == 0) {
+            verifiedBlocks.incrementAndGet();
+        }
+    }
+
+    private boolean isVerified(final int index) {
+        assert verified != null;
+        return (verified.get(index / Long.SIZE) & 1L << index) != 0;
+    }
+
+    private static int checksum(@NotNull final ByteBuffer data) {
+        final CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes rows of a table file sequentially through a large direct buffer of the caller, so a table takes
+     * few big writes.
+     * Blocks, the sparse index and the bloom filter are built in buffers reused for the whole table.
+     */
+    private static final class Writer {
+        private final FileChannel fc;
+        private final ByteBuffer buffer;
+        private final BloomFilter filter;
+        private final int blockSize;
+        private final Block.Builder block;
+        private final Compression compression;
+        private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer frame = ByteBuffer.allocate(0);
+        private ByteBuffer index = ByteBuffer.allocate(1024);
+        private long position;
+        private long lastOffset;
+        private long count;
+        private int blocks;
+
+        Writer(
+                @NotNull final FileChannel fc,
+                @NotNull final ByteBuffer buffer,
+                final long expectedRows,
+                @NotNull final Config config) {
+            this.fc = fc;
+            this.buffer = buffer;
+            this.filter = BloomFilter.create(expectedRows);
+            this.blockSize = config.getBlockSize();
+            this.block = new Block.Builder(blockSize);
+            this.compression = config.getCompression();
+            buffer.clear();
+        }
+
+        void add(@NotNull final Row row) throws IOException {
+            final ByteBuffer key = row.getKey();
+            if (block.isEmpty()) {
+                if (index.remaining() < Varints.MAX_BYTES * 2 + key.remaining()) {
+                    index = grow(index, Varints.MAX_BYTES * 2 + key.remaining());
                 }
+                Varints.put(index, key.remaining());
+                Block.Builder.put(index, key, 0);
+                Varints.put(index, position - lastOffset);
+                lastOffset = position;
+                blocks++;
+            }
+            block.add(key, row.getValue());
+            filter.put(key);
+            count++;
+
+            if (block.size() >= blockSize) {
+                writeBlock(block.finish());
+            }
+        }
+
+        /**
+         * Writes the last block, the sparse index, the bloom filter and the footer.
+         *
+         * @param level of the table
+         * @param order of the table among level 0 tables
+         * @throws IOException when writing goes wrong
+         */
+        void finish(
+                final int level,
+                final int order) throws IOException {
+            if (!block.isEmpty()) {
+                writeBlock(block.finish());
+            }
+
+            crc.reset();
+            final long indexOffset = position;
+            crc.update(index.flip().duplicate());
+            write(index);
+
+            final long bloomOffset = position;
+            final ByteBuffer bloom = ByteBuffer.allocate(filter.length() * Long.BYTES);
+            filter.writeTo(bloom);
+            crc.update(bloom.flip().duplicate());
+            write(bloom);
 
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_FIELDS_BYTES + FOOTER_TAIL_BYTES);
+            footer.putLong(count)
+                    .putLong(indexOffset)
+                    .putLong(bloomOffset)
+                    .putInt(filter.hashes())
+                    .putInt(level)
+                    .putInt(order)
+                    .putInt(blocks)
+                    .putInt(compression.id());
+            crc.update(footer.array(), footer.arrayOffset(), footer.position());
+            footer.putInt((int) crc.getValue())
+                    .putInt(FOOTER_FIELDS_BYTES)
+                    .putInt(VERSION)
+                    .putLong(MAGIC);
+            write(footer.flip());
+            drain();
+        }
+
+        /**
+         * Writes the block compressed if that saves at least an eighth of it, raw otherwise.
+         *
+         * @param data is contents of the block
+         * @throws IOException when writing goes wrong
+         */
+        private void writeBlock(@NotNull final ByteBuffer data) throws IOException {
+            final int length = data.remaining();
+            final Codec codec = compression.codec();
+            if (codec != null) {
+                final int bound = BLOCK_HEADER_BYTES + codec.maxCompressedLength(length);
+                if (frame.capacity() < bound) {
+                    frame = ByteBuffer.allocate(Math.max(bound, frame.capacity() * 2));
+                }
+                frame.clear();
+                frame.put(COMPRESSED_BLOCK).putInt(length).putInt(0);
+                codec.compress(data, frame);
+                if (frame.position() - BLOCK_HEADER_BYTES <= length - (length >>> 3)) {
+                    crc.reset();
+                    crc.update(frame.array(), frame.arrayOffset() + BLOCK_HEADER_BYTES,
+                            frame.position() - BLOCK_HEADER_BYTES);
+                    frame.putInt(Byte.BYTES + Integer.BYTES, (int) crc.getValue());
+                    write(frame.flip());
+                    return;
+                }
+            }
+            crc.reset();
+            crc.update(data.array(), data.arrayOffset() + data.position(), length);
+            header.clear();
+            write(header.put(RAW_BLOCK).putInt(length).putInt((int) crc.getValue()).flip());
+            write(data);
+        }
+
+        /**
+         * Appends bytes to the file, consuming {@param src}.
+         */
+        private void write(@NotNull final ByteBuffer src) throws IOException {
+            position += src.remaining();
+            while (src.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                if (buffer.position() == 0 && src.remaining() >= buffer.capacity()) {
+                    // Big enough to skip the copy
+                    while (src.hasRemaining()) {
+                        fc.write(src);
+                    }
+                    return;
+                }
+                final int limit = src.limit();
+                src.limit(src.position() + Math.min(src.remaining(), buffer.remaining()));
+                buffer.put(src);
+                src.limit(limit);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private static ByteBuffer grow(
+                @NotNull final ByteBuffer buffer,
+                final int bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            return grown.put(buffer);
+        }
+    }
+
+    private int binarySearch(
+            @NotNull final ByteBuffer from,
+            final int start) {
+        int low = start;
+        // Tables with an offset per row are mapped whole, so their row numbers fit int
+        int high = (int) quantity - 1;
+
+        while (low <= high) {
+            final int pivot = (low + high) >>> 1;
+            final int compared = compareKey(pivot, from);
+            if (compared < 0) {
+                low = pivot + 1;
+            } else if (compared == 0) {
+                return pivot;
+            } else {
                 high = pivot - 1;
             }
         }
@@ -159,28 +1017,47 @@ final class SSTable implements Table {
         return low;
     }
 
-    private ByteBuffer getKey(final long index) {
-        memMap.clear();
-        memMap.position((int) (indexBytes + index * Long.BYTES));
-        memMap.position((int) memMap.getLong());
-        final long keyLength = memMap.getLong();
-        memMap.limit((int) (memMap.position() + keyLength));
+    private int compareKey(
+            final long index,
+            @NotNull final ByteBuffer key) {
+        assert memMap != null;
+        final int offset = rowOffset(index);
+        return Keys.compare(memMap, offset + Long.BYTES, (int) memMap.getLong(offset), key);
+    }
 
-        return memMap.slice();
+    private ByteBuffer getKey(final long index) {
+        assert memMap != null;
+        final int offset = rowOffset(index);
+        return slice(offset + Long.BYTES, (int) memMap.getLong(offset));
     }
 
     private Row getRow(final long index) {
         final ByteBuffer key = getKey(index);
-        memMap.clear();
-        memMap.position((int) (indexBytes + index * Long.BYTES));
-        memMap.position((int) memMap.getLong() + Long.BYTES + key.remaining());
-        final long timestamp = memMap.getLong();
-        final long valueLength = memMap.getLong();
+        return Row.of(key, getValue(index, key.remaining()));
+    }
+
+    private Value getValue(final long index, final int keyLength) {
+        assert memMap != null;
+        final int offset = rowOffset(index) + Long.BYTES + keyLength;
+        final long timestamp = memMap.getLong(offset);
+        final long valueLength = memMap.getLong(offset + Long.BYTES);
         if (valueLength < 0) {
-            return Row.of(key, Value.tombstone(timestamp));
+            return Value.tombstone(timestamp);
         }
-        memMap.limit((int) (memMap.position() + valueLength));
+        return Value.of(timestamp, slice(offset + Long.BYTES * 2, (int) valueLength));
+    }
+
+    private int rowOffset(final long index) {
+        assert memMap != null;
+        return (int) memMap.getLong((int) (indexBytes + index * Long.BYTES));
+    }
 
-        return Row.of(key, Value.of(timestamp, memMap.slice()));
+    private ByteBuffer slice(
+            final int offset,
+            final int length) {
+        assert memMap != null;
+        final ByteBuffer slice = memMap.duplicate();
+        slice.position(offset).limit(offset + length);
+        return slice.slice();
     }
 }
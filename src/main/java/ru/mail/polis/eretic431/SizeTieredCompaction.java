@@ -0,0 +1,88 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges tables of similar size into one table of level 0, so every table is rewritten a few times only.
+ * Only adjacent tables are merged, the result takes their place among level 0 tables.
+ * Tables smaller than the flush threshold are considered similar to each other.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+    private static final int MAX_TABLES = 32;
+
+    private final int minTables;
+    private final long smallTableSize;
+
+    SizeTieredCompaction(@NotNull final Config config) {
+        this.minTables = config.getCompactionThreshold();
+        this.smallTableSize = config.getFlushThreshold();
+    }
+
+    @Override
+    public boolean isNeeded(@NotNull final TableSet tables) {
+        return pick(tables) != null;
+    }
+
+    /**
+     * Picks the bucket of similar tables with the smallest tables, cheap merges go first.
+     */
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final TableSet tables) {
+        final List<SSTable> levelZero = tables.level(0);
+        List<SSTable> best = null;
+        long bestSize = Long.MAX_VALUE;
+
+        List<SSTable> bucket = new ArrayList<>();
+        long bucketSize = 0;
+        for (int i = levelZero.size() - 1; i >= 0; i--) {
+            final SSTable sst = levelZero.get(i);
+            if (!bucket.isEmpty() && !similar(sst.getSize(), bucketSize / bucket.size())) {
+                bucket = new ArrayList<>();
+                bucketSize = 0;
+            }
+            if (bucket.size() < MAX_TABLES) {
+                bucket.add(sst);
+                bucketSize += sst.getSize();
+            }
+            if (bucket.size() >= minTables && bucketSize / bucket.size() < bestSize) {
+                best = new ArrayList<>(bucket);
+                bestSize = bucketSize / bucket.size();
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        // Nothing is older than a bucket starting with the oldest table
+        final boolean oldest = best.get(0) == levelZero.get(levelZero.size() - 1) && tables.depth() <= 1;
+        return new Compaction(best, 0, oldest);
+    }
+
+    /**
+     * Merges all tables into a single table.
+     */
+    @Nullable
+    @Override
+    public Compaction full(@NotNull final TableSet tables) {
+        if (tables.ssTables.isEmpty()) {
+            return null;
+        }
+        return new Compaction(new ArrayList<>(tables.ssTables.values()), 0, true);
+    }
+
+    private boolean similar(
+            final long size,
+            final long average) {
+        if (size < smallTableSize && average < smallTableSize) {
+            return true;
+        }
+        return size >= average * BUCKET_LOW && size <= average * BUCKET_HIGH;
+    }
+}
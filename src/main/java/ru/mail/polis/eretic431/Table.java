@@ -1,6 +1,7 @@
 package ru.mail.polis.eretic431;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
@@ -8,6 +9,15 @@ import java.util.Iterator;
 public interface Table {
     Iterator<Row> iterator(@NotNull ByteBuffer from);
 
+    /**
+     * Finds the version of key stored in the table.
+     *
+     * @param key is a key to look for
+     * @return value or tombstone, null if the table knows nothing about {@param key}
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key);
+
     void upsert(
             @NotNull final ByteBuffer key,
             @NotNull final ByteBuffer value
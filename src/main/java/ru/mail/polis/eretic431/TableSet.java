@@ -0,0 +1,169 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the tables {@link LsmDAO} reads from.
+ * Every change of the table set publishes a new instance, so readers never observe a half-applied flush.
+ */
+final class TableSet {
+    private static final Comparator<SSTable> BY_MIN_KEY = Comparator.comparing(SSTable::getMinKey, Keys::compare);
+    private static final Comparator<SSTable> NEWEST_FIRST = Comparator.comparingInt(SSTable::getOrder).reversed();
+
+    @NotNull
+    final MemoryTable memTable;
+    @NotNull
+    final NavigableMap<Integer, MemoryTable> flushing;
+    @NotNull
+    final NavigableMap<Integer, SSTable> ssTables;
+    final int generation;
+    @NotNull
+    private final List<List<SSTable>> levels;
+
+    private TableSet(
+            @NotNull final MemoryTable memTable,
+            final int generation,
+            @NotNull final NavigableMap<Integer, MemoryTable> flushing,
+            @NotNull final NavigableMap<Integer, SSTable> ssTables) {
+        this.memTable = memTable;
+        this.generation = generation;
+        this.flushing = Collections.unmodifiableNavigableMap(flushing);
+        this.ssTables = Collections.unmodifiableNavigableMap(ssTables);
+        this.levels = levels(ssTables.values());
+    }
+
+    /**
+     * Creates table set over tables loaded from disk.
+     *
+     * @param ssTables   by generation
+     * @param generation of the memory table
+     * @return table set with an empty memory table
+     */
+    @NotNull
+    static TableSet of(
+            @NotNull final Collection<SSTable> ssTables,
+            final int generation) {
+        final NavigableMap<Integer, SSTable> tables = newTables();
+        for (final SSTable sst : ssTables) {
+            tables.put(sst.getGeneration(), sst);
+        }
+        return new TableSet(new MemoryTable(), generation, newTables(), tables);
+    }
+
+    /**
+     * Freezes memory table under its generation and starts a fresh one.
+     *
+     * @param next is a generation of the fresh memory table
+     * @return table set where the current memory table waits for flush
+     */
+    @NotNull
+    TableSet frozen(final int next) {
+        final NavigableMap<Integer, MemoryTable> tables = newTables();
+        tables.putAll(flushing);
+        tables.put(generation, memTable);
+        return new TableSet(new MemoryTable(), next, tables, ssTables);
+    }
+
+    /**
+     * Replaces frozen memory table by its flushed copy.
+     *
+     * @param generation of the frozen memory table
+     * @param sst        is a flushed memory table, null if it was empty
+     * @return table set without the frozen memory table
+     */
+    @NotNull
+    TableSet flushed(
+            final int generation,
+            @Nullable final SSTable sst) {
+        final NavigableMap<Integer, MemoryTable> frozen = newTables();
+        frozen.putAll(flushing);
+        frozen.remove(generation);
+        final NavigableMap<Integer, SSTable> tables = newTables();
+        tables.putAll(ssTables);
+        if (sst != null) {
+            tables.put(sst.getGeneration(), sst);
+        }
+        return new TableSet(memTable, this.generation, frozen, tables);
+    }
+
+    /**
+     * Replaces compacted tables by the result of compaction.
+     *
+     * @param compacted tables merged into {@param result}
+     * @param result    are tables written by compaction, empty if nothing survived
+     * @return table set with the same memory tables
+     */
+    @NotNull
+    TableSet compacted(
+            @NotNull final Collection<SSTable> compacted,
+            @NotNull final Collection<SSTable> result) {
+        final NavigableMap<Integer, SSTable> tables = newTables();
+        tables.putAll(ssTables);
+        for (final SSTable table : compacted) {
+            tables.remove(table.getGeneration());
+        }
+        for (final SSTable table : result) {
+            tables.put(table.getGeneration(), table);
+        }
+        return new TableSet(memTable, generation, flushing, tables);
+    }
+
+    /**
+     * Returns the oldest generation of memory tables, which are not on disk yet.
+     *
+     * @return generation of the oldest frozen memory table or the current one
+     */
+    int unflushed() {
+        return flushing.isEmpty() ? generation : flushing.lastKey();
+    }
+
+    /**
+     * Tables of level 0 overlap and go from the newest to the oldest one.
+     * Tables of deeper levels have disjoint key ranges and go in key order.
+     *
+     * @param level of tables
+     * @return tables of {@param level}, empty if there are none
+     */
+    @NotNull
+    List<SSTable> level(final int level) {
+        return level < levels.size() ? levels.get(level) : Collections.emptyList();
+    }
+
+    /**
+     * Returns number of levels up to the deepest non-empty one.
+     *
+     * @return 0 if there are no tables on disk
+     */
+    int depth() {
+        return levels.size();
+    }
+
+    private static List<List<SSTable>> levels(@NotNull final Collection<SSTable> ssTables) {
+        final List<List<SSTable>> levels = new ArrayList<>();
+        for (final SSTable sst : ssTables) {
+            while (levels.size() <= sst.getLevel()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(sst.getLevel()).add(sst);
+        }
+        for (int i = 0; i < levels.size(); i++) {
+            final List<SSTable> level = levels.get(i);
+            level.sort(i == 0 ? NEWEST_FIRST : BY_MIN_KEY);
+            levels.set(i, Collections.unmodifiableList(level));
+        }
+        return levels;
+    }
+
+    private static <T> NavigableMap<Integer, T> newTables() {
+        return new TreeMap<>(Comparator.reverseOrder());
+    }
+}
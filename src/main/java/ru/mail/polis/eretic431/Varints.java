@@ -0,0 +1,71 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable-length encoding of non-negative numbers: 7 bits per byte, the highest bit set on every byte but the last.
+ * Signed numbers are zigzag encoded first, so small negative numbers stay short too.
+ */
+final class Varints {
+    static final int MAX_BYTES = 10;
+
+    private Varints() {
+        // Not instantiatable
+    }
+
+    /**
+     * Writes the number at position of the buffer.
+     *
+     * @param buffer with at least {@link #size(long)} bytes remaining
+     * @param value  is a non-negative number
+     */
+    static void put(
+            @NotNull final ByteBuffer buffer,
+            final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer.put((byte) (remaining & 0x7F | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    /**
+     * Reads the number at position of the buffer.
+     *
+     * @param buffer positioned at the number
+     * @return the number
+     * @throws IllegalArgumentException when the number is longer than {@link #MAX_BYTES}
+     */
+    static long get(@NotNull final ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Returns length of the encoded number.
+     *
+     * @param value is a non-negative number
+     * @return size in bytes
+     */
+    static int size(final long value) {
+        return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    static long zigZag(final long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    static long unZigZag(final long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+}
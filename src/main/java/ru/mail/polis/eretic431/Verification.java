@@ -0,0 +1,22 @@
+package ru.mail.polis.eretic431;
+
+/**
+ * When {@link LsmDAO} checks CRC32C checksums of SSTable blocks it reads.
+ * Checksums of table footers are checked on opening unless {@link #NEVER} is chosen.
+ */
+public enum Verification {
+    /**
+     * Checks a block every time it is read from the file, cached blocks are not checked again.
+     */
+    ALWAYS,
+
+    /**
+     * Checks a block the first time it is read, later reads trust it.
+     */
+    FIRST_TOUCH,
+
+    /**
+     * Never checks, damaged blocks are read as they are.
+     */
+    NEVER
+}
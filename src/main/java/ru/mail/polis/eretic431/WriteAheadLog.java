@@ -0,0 +1,401 @@
+package ru.mail.polis.eretic431;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Log of writes to memory tables, one segment per memory table generation.
+ * Concurrent writers append records to a shared buffer and the first of them writes the whole group,
+ * so many writers share a single write and fsync. When the log is forced depends on {@link Durability}.
+ * Records are length, CRC32C of payload and payload of the sequence number and one or more rows, replayed all or none.
+ * A row is key length, key, timestamp, value length or -1 and value.
+ * Sequence numbers are taken in log order, so memory tables keeping the higher one of a key agree with the log
+ * however concurrent writers apply their records.
+ */
+final class WriteAheadLog implements Closeable {
+    public static final String LOG = ".log";
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+    private final File storage;
+    private final Durability durability;
+    private final long syncIntervalNanos;
+    private final long syncBytes;
+    private final AtomicLong sequence;
+    @Nullable
+    private final ScheduledExecutorService syncer;
+    private final Lock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private long appendedRecords;
+    private long committedRecords;
+    private boolean leader;
+    private IOException failure;
+    private long unsyncedBytes;
+    private long lastSync = System.nanoTime();
+    private boolean closed;
+    private FileChannel channel;
+
+    /**
+     * Opens log segment of the memory table.
+     *
+     * @param storage    where segments are kept
+     * @param generation of the memory table
+     * @param config     with fsync policy
+     * @param sequence   numbers records, advanced under the log lock
+     * @throws IOException when the segment can not be created
+     */
+    WriteAheadLog(
+            @NotNull final File storage,
+            final int generation,
+            @NotNull final Config config,
+            @NotNull final AtomicLong sequence) throws IOException {
+        this.storage = storage;
+        this.sequence = sequence;
+        this.durability = config.getDurability();
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getSyncInterval());
+        this.syncBytes = config.getSyncBytes();
+        this.channel = open(storage, generation);
+        if (durability == Durability.PERIODIC) {
+            // Writes stopping right after a group must not stay unsynced until the next write
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "lsm-log-syncer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(
+                    this::syncIdle, config.getSyncInterval(), config.getSyncInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Appends the record of a single row.
+     *
+     * @param key   of the row
+     * @param value of the row
+     * @return sequence number of the record
+     * @throws IOException when writing goes wrong
+     */
+    long append(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        return append(Collections.singletonList(Row.of(key, value)));
+    }
+
+    /**
+     * Appends the record and waits until it is written together with records of concurrent writers.
+     * Once a group fails to be written the log refuses further records, as their order on disk is unknown.
+     *
+     * @param rows of the record
+     * @return sequence number of the record
+     * @throws IOException when writing goes wrong
+     */
+    long append(@NotNull final List<Row> rows) throws IOException {
+        final long record;
+        final long number;
+        lock.lock();
+        try {
+            number = encode(rows);
+            record = ++appendedRecords;
+            while (committedRecords < record || failure != null) {
+                if (failure != null) {
+                    throw new IOException("Log is broken by a failed write", failure);
+                }
+                if (leader) {
+                    committed.await();
+                } else {
+                    commit();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for log write");
+        } finally {
+            lock.unlock();
+        }
+        return number;
+    }
+
+    /**
+     * Starts a segment of the next memory table and hands over the current one, which is left open and unforced,
+     * so callers holding locks do not wait for fsync. The caller passes it to {@link #seal(FileChannel)}.
+     * Must not be called concurrently with {@link #append(List)}.
+     *
+     * @param generation of the next memory table
+     * @return segment of the frozen memory table
+     * @throws IOException when the segment can not be created
+     */
+    @NotNull
+    FileChannel rotate(final int generation) throws IOException {
+        final FileChannel next = open(storage, generation);
+        lock.lock();
+        try {
+            final FileChannel previous = channel;
+            channel = next;
+            unsyncedBytes = 0;
+            lastSync = System.nanoTime();
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the segment handed over by {@link #rotate(int)} if files are synced, and closes it.
+     *
+     * @param segment of a frozen memory table
+     * @throws IOException when forcing goes wrong
+     */
+    void seal(@NotNull final FileChannel segment) throws IOException {
+        try (segment) {
+            if (durability.syncsFiles()) {
+                segment.force(false);
+            }
+        }
+    }
+
+    /**
+     * Deletes segment of the memory table which is flushed.
+     *
+     * @param storage    where segments are kept
+     * @param generation of the flushed memory table
+     * @throws IOException when deletion goes wrong
+     */
+    static void delete(
+            @NotNull final File storage,
+            final int generation) throws IOException {
+        Files.deleteIfExists(new File(storage, generation + LOG).toPath());
+    }
+
+    /**
+     * Reads records of the segment, a torn or damaged tail left by a crash is ignored.
+     * Rows keep sequence numbers of their records, so the memory table ends up with the values seen before the crash.
+     *
+     * @param segment is a segment file
+     * @return memory table with records of the segment
+     * @throws IOException when reading goes wrong
+     */
+    @NotNull
+    static MemoryTable replay(@NotNull final File segment) throws IOException {
+        final MemoryTable memTable = new MemoryTable();
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+        final CRC32C checksum = new CRC32C();
+        while (buffer.remaining() >= HEADER_BYTES) {
+            final int length = buffer.getInt();
+            final int expected = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            final ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            checksum.reset();
+            checksum.update(payload.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                break;
+            }
+            buffer.position(buffer.position() + length);
+
+            final List<Row> rows = new ArrayList<>(1);
+            final long number;
+            try {
+                number = payload.getLong();
+                do {
+                    final ByteBuffer key = read(payload, payload.getInt());
+                    final long timestamp = payload.getLong();
+                    final int valueLength = payload.getInt();
+                    rows.add(Row.of(key, valueLength < 0
+                            ? Value.tombstone(timestamp)
+                            : Value.of(timestamp, read(payload, valueLength))));
+                } while (payload.hasRemaining());
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Malformed record in " + segment, e);
+            }
+            for (final Row row : rows) {
+                memTable.upsert(row.key(), row.getValue(), number);
+            }
+        }
+        return memTable;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        lock.lock();
+        try {
+            closed = true;
+            closeChannel();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces records written since the last fsync unless a leader is writing a group, which forces them itself.
+     * Failures are kept or logged, an exception escaping the task would cancel the following runs.
+     */
+    private void syncIdle() {
+        lock.lock();
+        try {
+            if (closed || leader || failure != null || unsyncedBytes == 0) {
+                return;
+            }
+            channel.force(false);
+            unsyncedBytes = 0;
+            lastSync = System.nanoTime();
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            log.error("Unable to sync idle log", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes every appended record as a single group, called by the leader with the lock held.
+     * The lock is released during IO, so other writers keep appending to the next group.
+     */
+    private void commit() throws IOException {
+        final ByteBuffer group = pending;
+        final long records = appendedRecords;
+        pending = writing;
+        pending.clear();
+        writing = group;
+        leader = true;
+
+        unsyncedBytes += group.position();
+        final long now = System.nanoTime();
+        final boolean sync = durability == Durability.ALWAYS
+                || durability == Durability.PERIODIC
+                && (unsyncedBytes >= syncBytes || now - lastSync >= syncIntervalNanos);
+        if (sync) {
+            unsyncedBytes = 0;
+            lastSync = now;
+        }
+
+        IOException error = null;
+        lock.unlock();
+        try {
+            group.flip();
+            while (group.hasRemaining()) {
+                channel.write(group);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+            leader = false;
+            committedRecords = records;
+            failure = error;
+            committed.signalAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private long encode(@NotNull final List<Row> rows) {
+        long bytes = Long.BYTES;
+        for (final Row row : rows) {
+            final ByteBuffer data = row.getValue().getData();
+            bytes += Integer.BYTES + row.key().remaining() + Long.BYTES + Integer.BYTES
+                    + (data == null ? 0 : data.remaining());
+        }
+        if (bytes > Integer.MAX_VALUE - HEADER_BYTES) {
+            throw new IllegalArgumentException("Log record of " + bytes + " bytes is too large");
+        }
+        final int length = (int) bytes;
+        if (pending.remaining() < HEADER_BYTES + length) {
+            final ByteBuffer grown = ByteBuffer.allocate(
+                    Math.max(pending.capacity() * 2, pending.position() + HEADER_BYTES + length));
+            pending.flip();
+            pending = grown.put(pending);
+        }
+
+        final long number = sequence.incrementAndGet();
+        final int start = pending.position() + HEADER_BYTES;
+        pending.position(start);
+        pending.putLong(number);
+        for (final Row row : rows) {
+            final ByteBuffer key = row.key();
+            final ByteBuffer data = row.getValue().getData();
+            pending.putInt(key.remaining()).put(key.duplicate()).putLong(row.getValue().getTimestamp());
+            if (data == null) {
+                pending.putInt(-1);
+            } else {
+                pending.putInt(data.remaining()).put(data.duplicate());
+            }
+        }
+
+        final ByteBuffer payload = pending.duplicate();
+        payload.flip().position(start);
+        crc.reset();
+        crc.update(payload);
+        pending.putInt(start - HEADER_BYTES, length);
+        pending.putInt(start - Integer.BYTES, (int) crc.getValue());
+        return number;
+    }
+
+    private void closeChannel() throws IOException {
+        if (durability.syncsFiles()) {
+            channel.force(false);
+        }
+        unsyncedBytes = 0;
+        lastSync = System.nanoTime();
+        channel.close();
+    }
+
+    private static ByteBuffer read(
+            @NotNull final ByteBuffer payload,
+            final int length) {
+        final ByteBuffer result = payload.slice();
+        result.limit(length);
+        payload.position(payload.position() + length);
+        return result;
+    }
+
+    private static FileChannel open(
+            @NotNull final File storage,
+            final int generation) throws IOException {
+        return FileChannel.open(
+                new File(storage, generation + LOG).toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks a damaged table is reported instead of being read as garbage.
+ */
+class ChecksumTest extends TestBase {
+    private static final int KEYS = 20_000;
+
+    @Test
+    void damagedBlock(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+        }
+
+        File largest = null;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith(".dat") && (largest == null || file.length() > largest.length())) {
+                largest = file;
+            }
+        }
+        assertNotNull(largest);
+        // Blocks take most of a table, the index and the bloom filter are at its end
+        largest.setWritable(true);
+        try (RandomAccessFile file = new RandomAccessFile(largest, "rw")) {
+            final long offset = file.length() / 3;
+            file.seek(offset);
+            final int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0x10);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(IllegalStateException.class, () -> {
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                while (records.hasNext()) {
+                    records.next();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.eretic431.CompactionStyle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks every {@link CompactionStyle} keeps the latest data through flushes, compactions and reopening.
+ */
+class CompactionStyleTest extends TestBase {
+    private static final int KEYS = 2_000;
+    private static final int ROUNDS = 5;
+    private static final int VALUE_LENGTH = 2048;
+
+    @Test
+    void leveled(@TempDir File data) throws IOException {
+        overwriteAndRemove(data, CompactionStyle.LEVELED);
+    }
+
+    @Test
+    void sizeTiered(@TempDir File data) throws IOException {
+        overwriteAndRemove(data, CompactionStyle.SIZE_TIERED);
+    }
+
+    @Test
+    void fifo(@TempDir File data) throws IOException {
+        overwriteAndRemove(data, CompactionStyle.FIFO);
+    }
+
+    private static void overwriteAndRemove(
+            final File data,
+            final CompactionStyle style) throws IOException {
+        final ByteBuffer[] keys = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = randomKey();
+        }
+
+        // Several megabytes per round, so tables are flushed and compacted in background
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            try (DAO dao = DAOFactory.create(data, style)) {
+                for (int i = 0; i < KEYS; i++) {
+                    if ((i + round) % 7 == 0) {
+                        dao.remove(keys[i]);
+                        expected.remove(keys[i]);
+                    } else {
+                        final ByteBuffer value = randomBuffer(VALUE_LENGTH);
+                        dao.upsert(keys[i], value);
+                        expected.put(keys[i], value);
+                    }
+                }
+                check(dao, expected);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, style)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+        try (DAO dao = DAOFactory.create(data, style)) {
+            check(dao, expected);
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertFalse(records.hasNext());
+
+        final ByteBuffer absent = randomKey();
+        if (!expected.containsKey(absent)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(absent));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks compressible and incompressible values survive flushes, compactions and reopening.
+ */
+class CompressionTest extends TestBase {
+    private static final int KEYS = 20_000;
+
+    @Test
+    void mixedValues(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = ByteBuffer.wrap(String.format("key-%08d", i).getBytes(StandardCharsets.UTF_8));
+                // Runs of compressible values are interleaved with random ones, so blocks of both kinds are written
+                final ByteBuffer value = i / 100 % 2 == 0 ? text(i) : randomBuffer(1 + i % 300);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            check(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+        }
+    }
+
+    private static ByteBuffer text(final int i) {
+        final StringBuilder text = new StringBuilder();
+        final int repeats = ThreadLocalRandom.current().nextInt(1, 40);
+        for (int j = 0; j < repeats; j++) {
+            text.append("{\"id\":").append(i).append(",\"status\":\"active\",\"tags\":[\"a\",\"b\"]}");
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -0,0 +1,96 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Concurrent access tests for {@link DAO} implementations.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 10_000;
+
+    @Test
+    void concurrentUpserts(@TempDir File data) throws Exception {
+        final List<Collection<ByteBuffer>> keys = new ArrayList<>(THREADS);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                final List<Future<Collection<ByteBuffer>>> futures = new ArrayList<>(THREADS);
+                for (int i = 0; i < THREADS; i++) {
+                    futures.add(executor.submit(() -> {
+                        final Collection<ByteBuffer> written = new ArrayList<>(KEYS_PER_THREAD);
+                        for (int j = 0; j < KEYS_PER_THREAD; j++) {
+                            final ByteBuffer key = randomKey();
+                            dao.upsert(key, join(key, key));
+                            written.add(key);
+                        }
+                        return written;
+                    }));
+                }
+                for (final Future<Collection<ByteBuffer>> future : futures) {
+                    keys.add(future.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            for (final Collection<ByteBuffer> written : keys) {
+                for (final ByteBuffer key : written) {
+                    assertEquals(join(key, key), dao.get(key));
+                }
+            }
+        }
+
+        // Everything survives reopening
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Collection<ByteBuffer> written : keys) {
+                for (final ByteBuffer key : written) {
+                    assertEquals(join(key, key), dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void concurrentOverwrites(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                final List<Future<?>> futures = new ArrayList<>(THREADS);
+                for (int i = 0; i < THREADS; i++) {
+                    futures.add(executor.submit(() -> {
+                        for (int j = 0; j < KEYS_PER_THREAD / 10; j++) {
+                            dao.upsert(key, randomValue());
+                            dao.upsert(randomKey(), randomValue());
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link DAO} refuses writes while flushes fail and takes them again once flushes recover.
+ */
+class FlushFailureTest extends TestBase {
+    private static final int VALUE_SIZE = 64 * 1024;
+    private static final int MAX_WRITES = 1000;
+
+    @Test
+    void refusesWritesUntilFlushRecovers(@TempDir File data) throws Exception {
+        // The first memory table of an empty storage is generation 0, a directory in place of its temporary file
+        // makes the flush fail
+        final File blocker = new File(data, "0.tmp");
+        assertTrue(blocker.mkdir());
+
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            IOException refused = null;
+            for (int i = 0; i < MAX_WRITES && refused == null; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(VALUE_SIZE);
+                try {
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                } catch (IOException e) {
+                    refused = e;
+                }
+            }
+            assertNotNull(refused);
+
+            Files.delete(blocker.toPath());
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (true) {
+                try {
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                    break;
+                } catch (IOException e) {
+                    assertTrue(System.nanoTime() < deadline);
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks {@link DAO#getAll(java.util.Collection)} finds the latest values in memory and on disk in the order asked.
+ */
+class GetAllTest extends TestBase {
+    private static final int KEYS = 3_000;
+    private static final int ROUNDS = 4;
+
+    @Test
+    void acrossTables(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKey());
+        }
+
+        // Every round overwrites and removes a part of keys, the last one stays in memory
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        DAO dao = DAOFactory.create(data);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = round; i < KEYS; i += round + 1) {
+                    final ByteBuffer key = keys.get(i);
+                    if (i % 7 == round) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                if (round < ROUNDS - 1) {
+                    dao.close();
+                    dao = DAOFactory.create(data);
+                }
+            }
+
+            // Keys asked in random order with duplicates and keys never written
+            final List<ByteBuffer> asked = new ArrayList<>(keys);
+            asked.addAll(keys.subList(0, KEYS / 10));
+            for (int i = 0; i < KEYS / 10; i++) {
+                asked.add(randomKey());
+            }
+            Collections.shuffle(asked);
+            check(dao, asked, expected);
+
+            dao.compact();
+            check(dao, asked, expected);
+            check(dao, Collections.emptyList(), expected);
+        } finally {
+            dao.close();
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final List<ByteBuffer> asked,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final List<ByteBuffer> values = dao.getAll(asked);
+        assertEquals(asked.size(), values.size());
+        for (int i = 0; i < asked.size(); i++) {
+            assertEquals(expected.get(asked.get(i)), values.get(i));
+        }
+    }
+}
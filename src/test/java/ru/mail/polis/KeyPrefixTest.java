@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks lookups and range scans over keys sharing long prefixes, including keys which are prefixes of each other.
+ */
+class KeyPrefixTest extends TestBase {
+    private static final int TENANTS = 50;
+    private static final int ENTITIES = 300;
+
+    @Test
+    void sharedPrefixes(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int tenant = 0; tenant < TENANTS; tenant++) {
+                for (int entity = 0; entity < ENTITIES; entity++) {
+                    // Every fifth key is a prefix of the next one
+                    final String suffix = entity % 5 == 0 ? "" : "/" + entity;
+                    final ByteBuffer key = key("tenant-" + tenant + "/order/" + entity / 5 + suffix);
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void differingBytes(@TempDir File data) throws IOException {
+        // Keys differ in a single byte of either sign at any position before, at and past a word of a long prefix
+        final byte[] prefix = new byte[24];
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int length = 1; length <= prefix.length; length++) {
+                for (int position = 0; position < length; position++) {
+                    for (final byte difference : new byte[]{-128, -1, 1, 127}) {
+                        final byte[] key = Arrays.copyOf(prefix, length);
+                        key[position] = difference;
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(ByteBuffer.wrap(key), value);
+                        expected.put(ByteBuffer.wrap(key), value);
+                    }
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            checkRange(dao, expected, ByteBuffer.wrap(new byte[12]));
+            checkRange(dao, expected, ByteBuffer.allocate(0));
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+
+        // Absent keys fall between stored keys sharing their prefixes
+        for (int tenant = 0; tenant < TENANTS; tenant += 7) {
+            final ByteBuffer absent = key("tenant-" + tenant + "/order/1/");
+            assertThrows(NoSuchElementException.class, () -> dao.get(absent));
+            checkRange(dao, expected, absent);
+            checkRange(dao, expected, key("tenant-" + tenant + "/order/2"));
+            checkRange(dao, expected, key("tenant-" + tenant + "/"));
+        }
+        checkRange(dao, expected, key("tenant-99"));
+    }
+
+    private static void checkRange(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final ByteBuffer from) throws IOException {
+        final Iterator<Record> records = dao.iterator(from);
+        int checked = 0;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.tailMap(from, true).entrySet()) {
+            if (checked++ == 100) {
+                return;
+            }
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static ByteBuffer key(final String key) {
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,80 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks range scans over many tables return the latest version of every live key once.
+ */
+class MergeTest extends TestBase {
+    private static final int KEYS = 500;
+    private static final int TABLES = 40;
+    private static final int SCANS = 20;
+
+    @Test
+    void manyTables(@TempDir File data) throws IOException {
+        final ByteBuffer[] keys = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = randomKey();
+        }
+
+        // Every reopening flushes a table overwriting and removing a part of keys of the previous ones
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = table % 3; i < KEYS; i += 3) {
+                    if ((i + table) % 5 == 0) {
+                        dao.remove(keys[i]);
+                        expected.remove(keys[i]);
+                    } else {
+                        final ByteBuffer value = randomBuffer(64);
+                        dao.upsert(keys[i], value);
+                        expected.put(keys[i], value);
+                    }
+                }
+                if (table % 10 == 9) {
+                    check(dao, expected);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        scan(dao, expected, ByteBuffer.allocate(0));
+        for (int i = 0; i < SCANS; i++) {
+            scan(dao, expected, randomKey());
+        }
+    }
+
+    private static void scan(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final ByteBuffer from) throws IOException {
+        final Iterator<Record> records = dao.iterator(from);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.tailMap(from).entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -0,0 +1,107 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks {@link DAO} keeps writes of an instance which has never been closed, as after a crash.
+ */
+class RecoveryTest extends TestBase {
+    @Test
+    void unclosed(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final ByteBuffer removed = randomKey();
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(removed, randomValue());
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            crashed.upsert(key, value);
+            expected.put(key, value);
+        }
+        crashed.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void unclosedAfterFlushes(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final int valueSize = 256 * 1024;
+
+        // Older versions are flushed, the newest one is in the log only
+        final DAO crashed = DAOFactory.create(data);
+        ByteBuffer value = null;
+        for (int i = 0; i < 20; i++) {
+            value = randomBuffer(valueSize);
+            crashed.upsert(key, value);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void unclosedAfterRacingWrites(@TempDir File data) throws Exception {
+        final int threads = 8;
+        final int keys = 100;
+        final Map<ByteBuffer, ByteBuffer> live = new TreeMap<>();
+
+        // Writers race on every key, the value seen before the crash must be the one recovered
+        final DAO crashed = DAOFactory.create(data);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < keys; i++) {
+                final ByteBuffer key = randomKey();
+                final CountDownLatch start = new CountDownLatch(1);
+                final List<Future<?>> writes = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    writes.add(executor.submit(() -> {
+                        start.await();
+                        crashed.upsert(key, randomValue());
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (final Future<?> write : writes) {
+                    write.get();
+                }
+                live.put(key, crashed.get(key));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : live.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+}
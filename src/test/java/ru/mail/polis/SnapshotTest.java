@@ -0,0 +1,157 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link Snapshot} keeps the state it was taken at through writes, flushes and compactions.
+ */
+class SnapshotTest extends TestBase {
+    private static final int KEYS = 3_000;
+    private static final int BATCH_KEYS = 50;
+
+    @Test
+    void pinnedState(@TempDir File data) throws Exception {
+        final ByteBuffer[] keys = new ByteBuffer[KEYS];
+        final NavigableMap<ByteBuffer, ByteBuffer> pinned = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(keys[i], value);
+                pinned.put(keys[i], value);
+            }
+        }
+        final Set<String> flushed = new HashSet<>(Arrays.asList(tables(data)));
+
+        try (DAO dao = DAOFactory.create(data)) {
+            // Some keys of the view are in the memory table only
+            for (int i = 0; i < KEYS; i += 10) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(keys[i], value);
+                pinned.put(keys[i], value);
+            }
+            final Snapshot snapshot = dao.snapshot();
+
+            final NavigableMap<ByteBuffer, ByteBuffer> current = new TreeMap<>(pinned);
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < KEYS; i++) {
+                    if ((i + round) % 5 == 0) {
+                        dao.remove(keys[i]);
+                        current.remove(keys[i]);
+                    } else {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(keys[i], value);
+                        current.put(keys[i], value);
+                    }
+                }
+                final ByteBuffer added = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(added, value);
+                current.put(added, value);
+            }
+            dao.compact();
+
+            check(dao.iterator(ByteBuffer.allocate(0)), current);
+            check(snapshot.iterator(ByteBuffer.allocate(0)), pinned);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : pinned.entrySet()) {
+                assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+            }
+            final ByteBuffer added = current.lastKey();
+            if (!pinned.containsKey(added)) {
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+            }
+
+            // Tables replaced by the compaction are kept until the view is closed
+            assertTrue(Arrays.asList(tables(data)).containsAll(flushed));
+            snapshot.close();
+            for (final String table : tables(data)) {
+                assertFalse(flushed.contains(table));
+            }
+            check(dao.iterator(ByteBuffer.allocate(0)), current);
+        }
+    }
+
+    @Test
+    void wholeBatches(@TempDir File data) throws Exception {
+        final ByteBuffer[] keys = new ByteBuffer[BATCH_KEYS];
+        for (int i = 0; i < BATCH_KEYS; i++) {
+            keys[i] = randomKey();
+        }
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicBoolean stop = new AtomicBoolean();
+        try (DAO dao = DAOFactory.create(data)) {
+            // Every batch sets every key to the same value
+            final Future<?> writer = executor.submit(() -> {
+                while (!stop.get()) {
+                    final WriteBatch batch = new WriteBatch();
+                    final ByteBuffer value = randomValue();
+                    for (final ByteBuffer key : keys) {
+                        batch.upsert(key, value);
+                    }
+                    dao.write(batch);
+                }
+                return null;
+            });
+
+            for (int i = 0; i < 200; i++) {
+                try (Snapshot snapshot = dao.snapshot()) {
+                    final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+                    if (!records.hasNext()) {
+                        continue;
+                    }
+                    final ByteBuffer value = records.next().getValue();
+                    int count = 1;
+                    while (records.hasNext()) {
+                        assertEquals(value, records.next().getValue());
+                        count++;
+                    }
+                    assertEquals(BATCH_KEYS, count);
+                }
+            }
+            stop.set(true);
+            writer.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void check(
+            final Iterator<Record> records,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static String[] tables(final File data) {
+        final String[] tables = data.list((dir, name) -> name.endsWith(".dat"));
+        return tables == null ? new String[0] : tables;
+    }
+}
@@ -0,0 +1,163 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks {@link DAO#write(WriteBatch)} applies every operation in order and recovers batches all or none.
+ */
+class WriteBatchTest extends TestBase {
+    private static final int OPERATIONS = 1000;
+    private static final int FILLER_OPERATIONS = 100_000;
+    private static final int RACES = 20;
+    private static final int FLUSH_THRESHOLD = (int) (DAOFactory.MAX_HEAP / 32);
+    private static final int FREEZING_VALUE_SIZE = 64 * 1024;
+
+    @Test
+    void upsertsAndRemovals(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> removed = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            final ByteBuffer stale = randomKey();
+            dao.upsert(stale, randomValue());
+            removed.add(stale);
+
+            final WriteBatch batch = new WriteBatch().remove(stale);
+            for (int i = 0; i < OPERATIONS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                batch.upsert(key, value);
+                if (i % 10 == 0) {
+                    // The last operation of a key wins
+                    batch.remove(key);
+                    removed.add(key);
+                } else {
+                    expected.put(key, value);
+                }
+            }
+            dao.write(batch);
+            check(dao, expected, removed);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected, removed);
+        }
+    }
+
+    @Test
+    void tornBatch(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> lost = new ArrayList<>();
+
+        final DAO crashed = DAOFactory.create(data);
+        final WriteBatch first = new WriteBatch();
+        final WriteBatch second = new WriteBatch();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            first.upsert(key, value);
+            expected.put(key, value);
+
+            final ByteBuffer next = randomKey();
+            second.upsert(next, randomValue());
+            lost.add(next);
+        }
+        crashed.write(first);
+        crashed.write(second);
+
+        // The crash tears the last record of the log in the middle of the second batch
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (RandomAccessFile log = new RandomAccessFile(logs[0], "rw")) {
+            log.setLength(log.length() - 100);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected, lost);
+        }
+    }
+
+    @Test
+    void racingFreeze(@TempDir File data) throws Exception {
+        // While a long batch is prepared, an upsert of the same key fills the memory table up and freezes it,
+        // so the batch goes to the next memory table
+        final ByteBuffer filler = randomKey();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            final List<ByteBuffer> winners = new ArrayList<>();
+            for (int race = 0; race < RACES; race++) {
+                dao.upsert(filler, randomBuffer(FLUSH_THRESHOLD - FREEZING_VALUE_SIZE));
+
+                final ByteBuffer key = randomKey();
+                keys.add(key);
+                final WriteBatch batch = new WriteBatch();
+                for (int i = 0; i < FILLER_OPERATIONS; i++) {
+                    batch.remove(filler);
+                }
+                batch.upsert(key, randomValue());
+
+                final CountDownLatch started = new CountDownLatch(1);
+                final Future<?> batchWrite = executor.submit(() -> {
+                    started.countDown();
+                    dao.write(batch);
+                    return null;
+                });
+                final Future<?> upsert = executor.submit(() -> {
+                    started.await();
+                    Thread.sleep(2);
+                    dao.upsert(key, randomBuffer(FREEZING_VALUE_SIZE));
+                    return null;
+                });
+                batchWrite.get();
+                upsert.get();
+
+                // Point reads and iteration agree on which write won before compactions merge the tables
+                final ByteBuffer value = dao.get(key);
+                winners.add(value);
+                final Iterator<Record> records = dao.iterator(key);
+                assertEquals(value, records.next().getValue());
+            }
+
+            // Compactions keep the winners
+            dao.compact();
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(winners.get(i), dao.get(keys.get(i)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final List<ByteBuffer> absent) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        for (final ByteBuffer key : absent) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+}